@@ -0,0 +1,28 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+/**
+ * Run all the benchmarks, one after the other.
+ */
+public class AllBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        SendPathBenchmark.main(args);
+        TemplateBenchmark.main(args);
+        HtmlToTextBenchmark.main(args);
+        RecipientParserBenchmark.main(args);
+        SuppressionListBenchmark.main(args);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.util.Locale;
+
+/**
+ * A minimal benchmark harness: run an operation repeatedly to warm up the JIT, then measure the average time per operation over a few
+ * iterations.
+ */
+abstract class Benchmark {
+
+    private static final long WARMUP_NANOS = 2000000000L;
+    private static final long ITERATION_NANOS = 1000000000L;
+    private static final int ITERATIONS = 5;
+
+    // Written by the benchmarks so that the JIT can't remove the work we're measuring.
+    static volatile Object sBlackhole;
+
+    /**
+     * The operation to measure.
+     */
+    abstract void run() throws Exception;
+
+    /**
+     * Warm up, then measure the given benchmark, and print the average time per operation.
+     */
+    static void measure(String name, Benchmark benchmark) throws Exception {
+        measure(name, 0, benchmark);
+    }
+
+    /**
+     * Warm up, then measure the given benchmark, and print the average time per operation, and the throughput.
+     * 
+     * @param bytesPerOp the number of bytes processed by one operation. If 0, the throughput isn't printed.
+     */
+    static void measure(String name, long bytesPerOp, Benchmark benchmark) throws Exception {
+        runFor(benchmark, WARMUP_NANOS);
+        double bestNanosPerOp = Double.MAX_VALUE;
+        double totalNanosPerOp = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            double nanosPerOp = runFor(benchmark, ITERATION_NANOS);
+            totalNanosPerOp += nanosPerOp;
+            bestNanosPerOp = Math.min(bestNanosPerOp, nanosPerOp);
+        }
+        double averageNanosPerOp = totalNanosPerOp / ITERATIONS;
+        String result = String.format(Locale.US, "%-50s %14.1f us/op (best %.1f us/op) %12.1f ops/s", name, averageNanosPerOp / 1000,
+                bestNanosPerOp / 1000, 1000000000 / averageNanosPerOp);
+        if (bytesPerOp > 0) result += String.format(Locale.US, " %10.1f MB/s", bytesPerOp * 1000 / averageNanosPerOp);
+        System.out.println(result);
+    }
+
+    /**
+     * @return the average nanoseconds per operation after running the benchmark for at least the given duration.
+     */
+    private static double runFor(Benchmark benchmark, long durationNanos) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            benchmark.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < durationNanos);
+        return (double) elapsed / ops;
+    }
+}
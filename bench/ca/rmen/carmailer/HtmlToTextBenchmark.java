@@ -0,0 +1,118 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+/**
+ * Compare the time to convert a large newsletter (1 MB by default, change it with -Dcarmailer.bench.htmlSize=bytes) to text with
+ * {@link HtmlToText}, and with the placeholder implementation it replaced. The previous implementation modifies the document, so each
+ * operation parses the html again: the time to only parse it is measured too.
+ */
+public class HtmlToTextBenchmark {
+
+    private static final int MAX_LINE_LENGTH = 72;
+
+    public static void main(String[] args) throws Exception {
+        int htmlSize = Integer.getInteger("carmailer.bench.htmlSize", 1024 * 1024);
+        final String html = createHtml(htmlSize);
+
+        Benchmark.measure("Jsoup.parse (" + htmlSize + " bytes)", new Benchmark() {
+            @Override
+            void run() {
+                sBlackhole = Jsoup.parse(html);
+            }
+        });
+        Benchmark.measure("Jsoup.parse + HtmlToText", new Benchmark() {
+            @Override
+            void run() {
+                sBlackhole = HtmlToText.convert(Jsoup.parse(html));
+            }
+        });
+        Benchmark.measure("Jsoup.parse + placeholders (previous implementation)", new Benchmark() {
+            @Override
+            void run() {
+                sBlackhole = previousHtmlToText(Jsoup.parse(html));
+            }
+        });
+    }
+
+    /**
+     * @return a newsletter of about the given size: paragraphs with line breaks, a table, and some very long paragraphs.
+     */
+    private static String createHtml(int size) {
+        StringBuilder html = new StringBuilder("<html><head><title>Newsletter</title></head><body>\n");
+        int paragraph = 0;
+        while (html.length() < size) {
+            html.append("<h2>Section ").append(paragraph).append("</h2>\n");
+            html.append("<p>This is paragraph ").append(paragraph).append(" of our newsletter. It has some <b>bold</b> text and a <a href=\"http://example.com/")
+                    .append(paragraph).append("\">link</a>.<br/>See you soon!</p>\n");
+            html.append("<table><tr><td>Item</td><td>Price</td></tr><tr><td>Wine</td><td>10</td></tr></table>\n");
+            // A long paragraph, which has to be wrapped many times.
+            html.append("<p>");
+            for (int word = 0; word < 500; word++)
+                html.append("word").append(word).append(' ');
+            html.append("</p>\n");
+            paragraph++;
+        }
+        html.append("</body></html>\n");
+        return html.toString();
+    }
+
+    /**
+     * The previous implementation of Parser.htmlToText().
+     */
+    private static String previousHtmlToText(Document document) {
+        final String placeholder = "#OMGOMG#";
+        Elements elements = document.getElementsByTag("br");
+        for (int i = 0; i < elements.size(); i++) {
+            Element element = elements.get(i);
+            element.text(placeholder);
+        }
+        elements = document.getElementsByTag("p");
+        for (int i = 0; i < elements.size(); i++) {
+            Element element = elements.get(i);
+            element.text(element.text() + placeholder + placeholder);
+        }
+        String textBody = document.text();
+        textBody = textBody.replaceAll(placeholder + " *", "\n");
+        return wrapText(textBody);
+    }
+
+    private static String wrapText(String text) {
+        String[] lines = text.split("\n");
+        StringBuilder result = new StringBuilder();
+        for (String line : lines) {
+            if (line.length() <= MAX_LINE_LENGTH) {
+                result.append(line).append("\n");
+            } else {
+                String splitLine = line;
+                while (splitLine.length() > 0) {
+                    int spaceIndex = splitLine.lastIndexOf(" ", MAX_LINE_LENGTH);
+                    if (spaceIndex > 0) {
+                        result.append(splitLine.substring(0, spaceIndex)).append("\n");
+                        splitLine = splitLine.substring(spaceIndex + 1);
+                    } else {
+                        result.append(splitLine).append("\n");
+                        break;
+                    }
+                }
+            }
+        }
+        return result.toString();
+    }
+}
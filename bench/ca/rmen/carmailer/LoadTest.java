@@ -0,0 +1,199 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.logging.Level;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.jsoup.Jsoup;
+
+import ca.rmen.carmailer.Mail.Body;
+
+/**
+ * Send a mail to many synthetic recipients with {@link CarMailer#sendEmail(SmtpCredentials, Mail, SendOptions)}, through a local
+ * {@link SmtpSink}, and report the throughput, the latency of each mail, and the heap usage.<br/>
+ * 
+ * Options, given with -Dcarmailer.bench.[name]=[value]:
+ * <ul>
+ * <li>recipients: the number of recipients. Default: 100000</li>
+ * <li>connections: the number of SMTP connections. Default: 4</li>
+ * <li>tags: true to send a mail with tags, different for each recipient. Default: true</li>
+ * <li>recipientsPerMail: send one mail to up to this many recipients of the same domain, if the mail has no tags. The links of the
+ * mail have URL-encoded text like %20, which must not be taken for tags: the load test fails if no mail is sent to several
+ * recipients. Default: 1</li>
+ * <li>latencyMs: how long the sink waits before accepting each mail. Default: 0</li>
+ * <li>tempFailureRate, permFailureRate: the fraction of mails refused by the sink with a 4xx or 5xx error. Default: 0</li>
+ * <li>keystore, keystorePassword: a JKS keystore with the certificate for STARTTLS. Without it, STARTTLS isn't offered. Create one with
+ * keytool -genkeypair -keyalg RSA -alias sink -keystore sink.jks</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int BODY_SIZE = 20 * 1024;
+    private static final int DOMAIN_COUNT = 100;
+
+    public static void main(String[] args) throws Exception {
+        int recipientCount = Integer.getInteger("carmailer.bench.recipients", 100000);
+        int connections = Integer.getInteger("carmailer.bench.connections", 4);
+        boolean tags = Boolean.parseBoolean(System.getProperty("carmailer.bench.tags", "true"));
+        int recipientsPerMail = Integer.getInteger("carmailer.bench.recipientsPerMail", 1);
+        int latencyMs = Integer.getInteger("carmailer.bench.latencyMs", 0);
+        double tempFailureRate = Double.parseDouble(System.getProperty("carmailer.bench.tempFailureRate", "0"));
+        double permFailureRate = Double.parseDouble(System.getProperty("carmailer.bench.permFailureRate", "0"));
+        String keystore = System.getProperty("carmailer.bench.keystore");
+        String keystorePassword = System.getProperty("carmailer.bench.keystorePassword", "");
+
+        SmtpSink sink = new SmtpSink(latencyMs, tempFailureRate, permFailureRate, createSslContext(keystore, keystorePassword));
+        int port = sink.start();
+        // Only log the errors: logging each mail would be the bottleneck.
+        Log.LOGGER.setLevel(Level.SEVERE);
+
+        File recipientsFile = createRecipientsFile(recipientCount);
+        try {
+            String html = createHtml(tags);
+            Body body = new Body(HtmlToText.convert(Jsoup.parse(html)), html, CHARSET);
+            MailHeaders headers = new MailHeaders("example.com", "CarMailer", "sender@example.com", "Load test");
+            Mail mail = new Mail(headers, new RecipientFile(recipientsFile.getPath(), CHARSET), body);
+            // No retries: the mails refused with a temporary error are counted as failed.
+            SendOptions sendOptions = new SendOptions.Builder().maxMailsPerBatch(recipientCount).delayBetweenBatches(0)
+                    .maxRecipientsPerMail(recipientsPerMail).connections(connections).maxRetries(0).retryDelay(0).build();
+            SmtpCredentials credentials = new SmtpCredentials("127.0.0.1", port, "sender@example.com", "password");
+
+            HeapSampler heapSampler = new HeapSampler();
+            heapSampler.start();
+            long start = System.nanoTime();
+            CarMailer.sendEmail(credentials, mail, sendOptions);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            heapSampler.interrupt();
+            heapSampler.join();
+
+            long[] latencies = sink.getSortedLatencies();
+            System.out.println(String.format(Locale.US, "Recipients:          %d (%s, %d connections, %d ms latency)", recipientCount,
+                    tags ? "tags" : "no tags", connections, latencyMs));
+            System.out.println(String.format(Locale.US, "Mails accepted:      %d in %.1f s: %.1f mails/s, %.1f MB/s", sink.messages.get(), seconds,
+                    sink.messages.get() / seconds, sink.bytes.get() / seconds / 1e6));
+            System.out.println(String.format(Locale.US, "Mails refused:       %d temporary, %d permanent", sink.tempFailures.get(),
+                    sink.permFailures.get()));
+            System.out.println(String.format(Locale.US, "Recipients per mail: %.2f", sink.recipients.get() / (double) sink.messages.get()));
+            System.out.println(String.format(Locale.US, "SMTP connections:    %d", sink.connections.get()));
+            System.out.println(String.format(Locale.US, "Latency per mail:    p50 %.2f ms, p99 %.2f ms, max %.2f ms", percentile(latencies, 50) / 1e6,
+                    percentile(latencies, 99) / 1e6, percentile(latencies, 100) / 1e6));
+            System.out.println(String.format(Locale.US, "Heap used:           peak %.1f MB, max %.1f MB", heapSampler.peakBytes / 1e6, Runtime
+                    .getRuntime().maxMemory() / 1e6));
+            if (!tags && recipientsPerMail > 1 && sink.recipients.get() == sink.messages.get())
+                throw new IllegalStateException("The mail has no tags, but it was never sent to several recipients at once");
+        } finally {
+            recipientsFile.delete();
+            sink.stop();
+        }
+    }
+
+    /**
+     * Samples the used heap every few milliseconds, to find its peak.
+     */
+    private static class HeapSampler extends Thread {
+        volatile long peakBytes;
+
+        HeapSampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            try {
+                while (true) {
+                    peakBytes = Math.max(peakBytes, runtime.totalMemory() - runtime.freeMemory());
+                    Thread.sleep(20);
+                }
+            } catch (InterruptedException e) {
+                // We're done.
+            }
+        }
+    }
+
+    /**
+     * @return the value below which the given percentage of the sorted values are, or 0 if there are no values.
+     */
+    private static long percentile(long[] sortedValues, int percent) {
+        if (sortedValues.length == 0) return 0;
+        int index = (int) Math.ceil(percent / 100.0 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+
+    /**
+     * @return an SSL context with the certificate of the given keystore, which the client will also trust, or null if there's no
+     *         keystore.
+     */
+    private static SSLContext createSslContext(String keystore, String password) throws Exception {
+        if (keystore == null) return null;
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        FileInputStream is = new FileInputStream(keystore);
+        try {
+            keyStore.load(is, password.toCharArray());
+        } finally {
+            is.close();
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password.toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        // The client uses the default trust store: make it trust our certificate.
+        System.setProperty("javax.net.ssl.trustStore", keystore);
+        System.setProperty("javax.net.ssl.trustStorePassword", password);
+        return sslContext;
+    }
+
+    private static File createRecipientsFile(int recipientCount) throws IOException {
+        File file = File.createTempFile("recipients", ".txt");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET));
+        try {
+            for (int i = 0; i < recipientCount; i++)
+                writer.write("recipient" + i + "@example" + (i % DOMAIN_COUNT) + ".com|Recipient " + i + "\n");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return an html newsletter of about 20 KB, with the recipient's name in each paragraph if withTags is true. The links have
+     *         URL-encoded parameters, like most newsletters.
+     */
+    private static String createHtml(boolean withTags) {
+        StringBuilder html = new StringBuilder("<html><body>\n");
+        int paragraph = 0;
+        while (html.length() < BODY_SIZE) {
+            html.append("<p>Dear ").append(withTags ? "%1" : "reader").append(", this is paragraph ").append(paragraph)
+                    .append(" of our newsletter. It has some <b>bold</b> text and a <a href=\"http://example.com/").append(paragraph)
+                    .append("?utm_campaign=spring%20news&amp;ref=a%3Db\">link</a>.<br/>See you soon!</p>\n");
+            paragraph++;
+        }
+        html.append("</body></html>\n");
+        return html.toString();
+    }
+}
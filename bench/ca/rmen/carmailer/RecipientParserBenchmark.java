@@ -0,0 +1,114 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+/**
+ * Compare the time to read all the recipients of a large file (10 million lines by default, change it with
+ * -Dcarmailer.bench.lines=n) with the {@link RecipientScanner}, and with the readLines() and split() implementation it replaced. Also
+ * measure the time to normalize and de-duplicate the recipients with the {@link RecipientFilter}, and the time to count the recipients
+ * with {@link IOUtils#countLines(File, Charset)}.
+ */
+public class RecipientParserBenchmark {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws Exception {
+        final int lineCount = Integer.getInteger("carmailer.bench.lines", 10000000);
+        final File file = createRecipientsFile(lineCount);
+        try {
+            Benchmark.measure("RecipientScanner (" + lineCount + " lines)", new Benchmark() {
+                @Override
+                void run() throws IOException {
+                    consume(new RecipientScanner(file, CHARSET));
+                }
+            });
+            Benchmark.measure("RecipientScanner + RecipientFilter (" + lineCount + " lines)", new Benchmark() {
+                @Override
+                void run() throws IOException {
+                    consume(new RecipientFilter(new RecipientScanner(file, CHARSET), lineCount));
+                }
+            });
+            Benchmark.measure("BufferedReader + split (" + lineCount + " lines)", new Benchmark() {
+                @Override
+                void run() throws IOException {
+                    consumePreviousImplementation(file);
+                }
+            });
+            Benchmark.measure("IOUtils.countLines (" + lineCount + " lines)", new Benchmark() {
+                @Override
+                void run() throws IOException {
+                    sBlackhole = IOUtils.countLines(file, CHARSET);
+                }
+            });
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void consume(Iterator<Recipient> recipients) {
+        while (recipients.hasNext())
+            blackhole(recipients.next());
+    }
+
+    private static void blackhole(Recipient recipient) {
+        Benchmark.sBlackhole = recipient;
+    }
+
+    /**
+     * The previous implementation of IOUtils.readLines() and Parser.parseRecipients(), without keeping the recipients in a list.
+     */
+    private static void consumePreviousImplementation(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            line = line.replaceAll("#.*$", "");
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            String[] split = line.split("\\|", -1);
+            String[] tags = new String[split.length - 1];
+            System.arraycopy(split, 1, tags, 0, tags.length);
+            blackhole(new Recipient(split[0], tags));
+        }
+        reader.close();
+    }
+
+    /**
+     * @return a temporary file with the given number of lines. Most lines have a recipient with two tags, some are comments.
+     */
+    private static File createRecipientsFile(int lineCount) throws IOException {
+        File file = File.createTempFile("recipients", ".txt");
+        file.deleteOnExit();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET));
+        try {
+            for (int i = 0; i < lineCount; i++) {
+                if (i % 100 == 0) writer.write("# Recipients starting at " + i + "\n");
+                else writer.write("user" + i + "@example.com|First" + i + "|Last name " + i + " # imported\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import ca.rmen.carmailer.Mail.Body;
+import ca.rmen.carmailer.Parser.BodyType;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * Measure each step of sending a mail, except the SMTP conversation: parsing the body and recipients files, creating the message for
+ * one recipient (with and without tags, in plain text and multipart), and writing the message as it would be sent to the server.
+ */
+public class SendPathBenchmark {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int BODY_SIZE = 100 * 1024;
+    private static final int RECIPIENT_COUNT = 100000;
+
+    public static void main(String[] args) throws Exception {
+        final File bodyFile = createFile("body", ".html", createHtml(false));
+        final File recipientsFile = createFile("recipients", ".txt", createRecipients());
+        try {
+            Benchmark.measure("Parser.parse (" + bodyFile.length() + " bytes)", bodyFile.length(), new Benchmark() {
+                @Override
+                void run() throws IOException {
+                    sBlackhole = Parser.parse(bodyFile.getPath(), BodyType.AUTO, null);
+                }
+            });
+            Benchmark.measure("Parser.parseRecipients (" + RECIPIENT_COUNT + " lines)", recipientsFile.length(), new Benchmark() {
+                @Override
+                void run() throws IOException {
+                    sBlackhole = Parser.parseRecipients(recipientsFile.getPath(), CHARSET);
+                }
+            });
+        } finally {
+            bodyFile.delete();
+            recipientsFile.delete();
+        }
+
+        final Session session = Session.getInstance(new Properties());
+        final MailHeaders headers = new MailHeaders("example.com", "CarMailer", "Sender <sender@example.com>", "Our newsletter");
+        final Recipient recipient = new Recipient("someone@example.com", new String[] { "Someone", "42" });
+        Benchmark.measure("new CarMimeMessage", new Benchmark() {
+            @Override
+            void run() {
+                sBlackhole = new CarMimeMessage(session, headers.messageIdDomain);
+            }
+        });
+
+        String taggedHtml = createHtml(true);
+        String untaggedHtml = createHtml(false);
+        measureMessage("text, tags", session, headers, recipient, new Body(taggedHtml, null, CHARSET));
+        measureMessage("multipart, tags", session, headers, recipient, new Body(taggedHtml, taggedHtml, CHARSET));
+        measureMessage("text, no tags", session, headers, recipient, new Body(untaggedHtml, null, CHARSET));
+        measureMessage("multipart, no tags", session, headers, recipient, new Body(untaggedHtml, untaggedHtml, CHARSET));
+    }
+
+    /**
+     * Measure the creation of the message for one recipient, and writing it. Untagged bodies are measured both with the
+     * {@link MessageSkeleton} used when sending, and with {@link CarMailer#createMessage(Session, Recipient, MailHeaders, Body)}.
+     */
+    private static void measureMessage(String name, final Session session, final MailHeaders headers, final Recipient recipient,
+            final Body body) throws Exception {
+        Benchmark.measure("CarMailer.createMessage (" + name + ")", new Benchmark() {
+            @Override
+            void run() throws Exception {
+                sBlackhole = CarMailer.createMessage(session, recipient, headers, body);
+            }
+        });
+        measureWriteTo("writeTo (" + name + ")", CarMailer.createMessage(session, recipient, headers, body));
+        if (!body.hasTags()) {
+            final MessageSkeleton skeleton = CarMailer.createMessageSkeleton(session, headers, body);
+            Benchmark.measure("MessageSkeleton.createMessage (" + name + ")", new Benchmark() {
+                @Override
+                void run() throws Exception {
+                    sBlackhole = skeleton.createMessage(session, recipient);
+                }
+            });
+            measureWriteTo("writeTo (" + name + ", skeleton)", skeleton.createMessage(session, recipient));
+        }
+    }
+
+    private static void measureWriteTo(String name, final Message message) throws Exception {
+        final CountingOutputStream counter = new CountingOutputStream();
+        write(message, counter);
+        Benchmark.measure(name, counter.count, new Benchmark() {
+            @Override
+            void run() throws Exception {
+                write(message, counter);
+            }
+        });
+    }
+
+    private static void write(Message message, OutputStream os) throws IOException, MessagingException {
+        OutputStream crlf = new CRLFOutputStream(os);
+        message.writeTo(crlf);
+        crlf.flush();
+    }
+
+    /**
+     * Counts the bytes written to it, and throws them away.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * @return an html newsletter of about 100 KB, with the tags %1 and %2 in each paragraph if withTags is true.
+     */
+    private static String createHtml(boolean withTags) {
+        StringBuilder html = new StringBuilder("<html><head><title>Newsletter</title></head><body>\n");
+        int paragraph = 0;
+        while (html.length() < BODY_SIZE) {
+            html.append("<p>Dear ").append(withTags ? "%1" : "reader").append(", this is paragraph ").append(paragraph)
+                    .append(" of our newsletter, with caf\u00e9 cr\u00e8me for ").append(withTags ? "%2" : "all")
+                    .append(" of you. It has some <b>bold</b> text and a <a href=\"http://example.com/").append(paragraph)
+                    .append("\">link</a>.<br/>See you soon!</p>\n");
+            paragraph++;
+        }
+        html.append("</body></html>\n");
+        return html.toString();
+    }
+
+    private static String createRecipients() {
+        StringBuilder recipients = new StringBuilder();
+        for (int i = 0; i < RECIPIENT_COUNT; i++)
+            recipients.append("recipient").append(i).append("@example").append(i % 100).append(".com|Recipient ").append(i).append("|")
+                    .append(i % 1000).append('\n');
+        return recipients.toString();
+    }
+
+    private static File createFile(String prefix, String suffix, String content) throws IOException {
+        File file = File.createTempFile(prefix, suffix);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), CHARSET);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
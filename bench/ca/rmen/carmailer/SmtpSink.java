@@ -0,0 +1,269 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A local SMTP server which accepts the mails and throws them away, to measure how fast we can send without a real mail provider.<br/>
+ * 
+ * It supports PIPELINING, AUTH PLAIN and LOGIN (any credentials are accepted), and STARTTLS if it's given an SSLContext. It can wait a
+ * while before accepting each mail, and refuse some mails with a temporary (451) or permanent (554) error. Recipients with "fail" in
+ * their address are always refused (550).
+ */
+class SmtpSink {
+    private static final String CRLF = "\r\n";
+
+    private final int mLatencyMs;
+    private final double mTempFailureRate;
+    private final double mPermFailureRate;
+    private final SSLContext mSslContext;
+    private ServerSocket mServerSocket;
+
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger messages = new AtomicInteger();
+    final AtomicInteger recipients = new AtomicInteger();
+    final AtomicInteger tempFailures = new AtomicInteger();
+    final AtomicInteger permFailures = new AtomicInteger();
+    final AtomicLong bytes = new AtomicLong();
+    // The duration of each accepted mail transaction, from MAIL FROM to the reply to the data, in nanoseconds.
+    private long[] mLatencies = new long[1024];
+    private int mLatencyCount;
+
+    /**
+     * @param latencyMs wait this long before replying to the data of each mail.
+     * @param tempFailureRate the fraction of mails refused with a temporary error.
+     * @param permFailureRate the fraction of mails refused with a permanent error.
+     * @param sslContext if not null, STARTTLS is supported, using this context.
+     */
+    SmtpSink(int latencyMs, double tempFailureRate, double permFailureRate, SSLContext sslContext) {
+        mLatencyMs = latencyMs;
+        mTempFailureRate = tempFailureRate;
+        mPermFailureRate = permFailureRate;
+        mSslContext = sslContext;
+    }
+
+    /**
+     * Start listening on a free port of the loopback interface.
+     * 
+     * @return the port.
+     */
+    int start() throws IOException {
+        mServerSocket = new ServerSocket(0, 100, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServerSocket.accept();
+                        connections.incrementAndGet();
+                        Thread session = new Thread(new Session(socket), "smtp-sink-session");
+                        session.setDaemon(true);
+                        session.start();
+                    }
+                } catch (IOException e) {
+                    // The server socket was closed.
+                }
+            }
+        }, "smtp-sink");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return mServerSocket.getLocalPort();
+    }
+
+    void stop() throws IOException {
+        mServerSocket.close();
+    }
+
+    /**
+     * @return the duration of the accepted mail transactions, in nanoseconds, sorted.
+     */
+    synchronized long[] getSortedLatencies() {
+        long[] result = Arrays.copyOf(mLatencies, mLatencyCount);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private synchronized void addLatency(long nanos) {
+        if (mLatencyCount == mLatencies.length) mLatencies = Arrays.copyOf(mLatencies, mLatencies.length * 2);
+        mLatencies[mLatencyCount++] = nanos;
+    }
+
+    /**
+     * The conversation with one client.
+     */
+    private class Session implements Runnable {
+        private final Random mRandom = new Random();
+        private Socket mSocket;
+        private InputStream mIn;
+        private OutputStream mOut;
+        private boolean mTls;
+        private long mTransactionStart;
+        private int mTransactionRecipients;
+
+        Session(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mIn = new BufferedInputStream(mSocket.getInputStream());
+                mOut = new BufferedOutputStream(mSocket.getOutputStream());
+                reply("220 localhost SMTP sink");
+                for (String line = readLine(); line != null; line = readLine()) {
+                    String command = line.toUpperCase();
+                    if (command.startsWith("EHLO")) {
+                        // With PIPELINING, the client may send several commands before reading our replies: they're answered in order.
+                        write("250-localhost");
+                        write("250-PIPELINING");
+                        write("250-8BITMIME");
+                        if (mSslContext != null && !mTls) write("250-STARTTLS");
+                        reply("250 AUTH PLAIN LOGIN");
+                    } else if (command.startsWith("HELO")) {
+                        reply("250 localhost");
+                    } else if (command.startsWith("STARTTLS") && mSslContext != null && !mTls) {
+                        reply("220 Ready to start TLS");
+                        startTls();
+                    } else if (command.startsWith("AUTH PLAIN")) {
+                        if (command.trim().equals("AUTH PLAIN")) {
+                            reply("334 ");
+                            readLine();
+                        }
+                        reply("235 Authenticated");
+                    } else if (command.startsWith("AUTH LOGIN")) {
+                        reply("334 VXNlcm5hbWU6");
+                        readLine();
+                        reply("334 UGFzc3dvcmQ6");
+                        readLine();
+                        reply("235 Authenticated");
+                    } else if (command.startsWith("MAIL FROM")) {
+                        mTransactionStart = System.nanoTime();
+                        mTransactionRecipients = 0;
+                        reply("250 OK");
+                    } else if (command.startsWith("RCPT TO")) {
+                        if (command.contains("FAIL")) {
+                            reply("550 5.1.1 User unknown");
+                        } else {
+                            mTransactionRecipients++;
+                            reply("250 OK");
+                        }
+                    } else if (command.equals("DATA")) {
+                        if (mTransactionRecipients == 0) {
+                            reply("554 No valid recipients");
+                        } else {
+                            reply("354 End data with <CR><LF>.<CR><LF>");
+                            readData();
+                        }
+                    } else if (command.equals("QUIT")) {
+                        reply("221 Bye");
+                        break;
+                    } else if (command.equals("RSET") || command.equals("NOOP")) {
+                        reply("250 OK");
+                    } else {
+                        reply("502 Command not implemented");
+                    }
+                }
+            } catch (IOException e) {
+                // The client went away.
+            } finally {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+
+        private void readData() throws IOException {
+            long size = 0;
+            for (String line = readLine(); line != null && !line.equals("."); line = readLine())
+                size += line.length() + 2;
+            bytes.addAndGet(size);
+            if (mLatencyMs > 0) {
+                try {
+                    Thread.sleep(mLatencyMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            double random = mRandom.nextDouble();
+            if (random < mTempFailureRate) {
+                tempFailures.incrementAndGet();
+                reply("451 4.3.0 Temporary failure, try again later");
+            } else if (random < mTempFailureRate + mPermFailureRate) {
+                permFailures.incrementAndGet();
+                reply("554 5.6.0 Message rejected");
+            } else {
+                messages.incrementAndGet();
+                recipients.addAndGet(mTransactionRecipients);
+                reply("250 OK");
+                addLatency(System.nanoTime() - mTransactionStart);
+            }
+        }
+
+        private void startTls() throws IOException {
+            mOut.flush();
+            SSLSocket sslSocket = (SSLSocket) mSslContext.getSocketFactory().createSocket(mSocket, mSocket.getInetAddress().getHostAddress(),
+                    mSocket.getPort(), true);
+            sslSocket.setUseClientMode(false);
+            sslSocket.startHandshake();
+            mSocket = sslSocket;
+            mIn = new BufferedInputStream(sslSocket.getInputStream());
+            mOut = new BufferedOutputStream(sslSocket.getOutputStream());
+            mTls = true;
+        }
+
+        /**
+         * @return the next line sent by the client, without the line ending, or null if the client closed the connection.
+         */
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+            int c;
+            while ((c = mIn.read()) != -1 && c != '\n') {
+                if (c != '\r') line.write(c);
+            }
+            if (c == -1 && line.size() == 0) return null;
+            return line.toString("ISO-8859-1");
+        }
+
+        private void write(String line) throws IOException {
+            mOut.write((line + CRLF).getBytes("ISO-8859-1"));
+        }
+
+        /**
+         * Write the last line of a reply, and send it, unless the client has already sent its next command.
+         */
+        private void reply(String line) throws IOException {
+            write(line);
+            // Pipelined replies can wait in the buffer until the client waits for them.
+            if (mIn.available() == 0) mOut.flush();
+        }
+    }
+}
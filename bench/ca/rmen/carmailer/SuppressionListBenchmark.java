@@ -0,0 +1,82 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+
+/**
+ * Measure the time to build the index of a large suppression list (1 million addresses by default, change it with
+ * -Dcarmailer.bench.suppressed=n), and the time to look up 1 million recipients in it: some suppressed, most not.
+ */
+public class SuppressionListBenchmark {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int LOOKUP_COUNT = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        Log.LOGGER.setLevel(Level.WARNING);
+        int suppressedCount = Integer.getInteger("carmailer.bench.suppressed", 1000000);
+        final File file = createSuppressionFile(suppressedCount);
+        final File indexFile = new File(file.getPath() + ".idx");
+        try {
+            Benchmark.measure("SuppressionList build (" + suppressedCount + " addresses)", new Benchmark() {
+                @Override
+                void run() throws IOException {
+                    indexFile.delete();
+                    Benchmark.sBlackhole = SuppressionList.open(file, CHARSET);
+                }
+            });
+            // One recipient in 10 is suppressed.
+            final Recipient[] recipients = new Recipient[LOOKUP_COUNT];
+            for (int i = 0; i < recipients.length; i++)
+                recipients[i] = new Recipient(i % 10 == 0 ? "unsubscribed" + i + "@example.com" : "user" + i + "@example.com", new String[0]);
+            final SuppressionList suppressionList = SuppressionList.open(file, CHARSET);
+            Benchmark.measure("SuppressionList.contains (" + LOOKUP_COUNT + " recipients)", new Benchmark() {
+                @Override
+                void run() {
+                    int suppressed = 0;
+                    for (Recipient recipient : recipients)
+                        if (suppressionList.contains(recipient)) suppressed++;
+                    Benchmark.sBlackhole = suppressed;
+                }
+            });
+        } finally {
+            file.delete();
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * @return a temporary file with the given number of addresses.
+     */
+    private static File createSuppressionFile(int addressCount) throws IOException {
+        File file = File.createTempFile("suppressed", ".txt");
+        file.deleteOnExit();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET));
+        try {
+            for (int i = 0; i < addressCount; i++)
+                writer.write("unsubscribed" + i + "@example.com\n");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+/**
+ * Compare the cost of building the body for one recipient with the {@link Template} and with the replaceAll() loop it replaced, on a
+ * 100 KB HTML body with 10 tags.
+ */
+public class TemplateBenchmark {
+
+    private static final int BODY_SIZE = 100 * 1024;
+    private static final int TAG_COUNT = 10;
+
+    public static void main(String[] args) throws Exception {
+        final String html = createHtml();
+        final String[] tags = new String[TAG_COUNT];
+        for (int i = 0; i < TAG_COUNT; i++)
+            tags[i] = "Tag value " + (i + 1);
+        final Template template = Template.compile(html);
+
+        Benchmark.measure("Template.compile", new Benchmark() {
+            @Override
+            void run() {
+                sBlackhole = Template.compile(html);
+            }
+        });
+        Benchmark.measure("Template.apply", new Benchmark() {
+            @Override
+            void run() {
+                sBlackhole = template.apply(tags);
+            }
+        });
+        Benchmark.measure("String.replaceAll (previous implementation)", new Benchmark() {
+            @Override
+            void run() {
+                String result = html;
+                for (int tagIndex = 0; tagIndex < tags.length; tagIndex++)
+                    result = result.replaceAll("%" + (tagIndex + 1), tags[tagIndex]);
+                sBlackhole = result;
+            }
+        });
+    }
+
+    /**
+     * @return an html body of about 100 KB, with each of the tags used a few times.
+     */
+    private static String createHtml() {
+        StringBuilder html = new StringBuilder("<html><head><title>Newsletter</title></head><body>\n");
+        int paragraph = 0;
+        while (html.length() < BODY_SIZE) {
+            int tag = paragraph % TAG_COUNT + 1;
+            html.append("<p>Dear %").append(tag).append(", this is paragraph ").append(paragraph)
+                    .append(" of our newsletter. It has some <b>bold</b> text and a <a href=\"http://example.com/").append(paragraph)
+                    .append("\">link</a>.<br/>See you soon!</p>\n");
+            paragraph++;
+        }
+        html.append("</body></html>\n");
+        return html.toString();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads back the mail sent to one recipient from an output folder, in any of the {@link SendOptions.OutputFormat}s.
+ */
+public class ArchiveReader {
+    private final File mFolder;
+
+    /**
+     * @param folder the output folder the mails were saved in.
+     */
+    public ArchiveReader(File folder) {
+        mFolder = folder;
+    }
+
+    /**
+     * Write the mail sent to the given address, exactly as it was saved in an eml file, to the given stream. If the mail was sent
+     * several times to this address, the last one is written.
+     * 
+     * @return false if there's no mail for this address.
+     */
+    public boolean extract(String address, OutputStream os) throws IOException {
+        File emlFile = new File(mFolder, EmlFolderArchive.getPath(address));
+        if (emlFile.exists()) {
+            os.write(IOUtils.readBytes(emlFile));
+            return true;
+        }
+        long[] entry = find(address);
+        if (entry == null) return false;
+        File mboxFile = new File(mFolder, MboxArchive.MBOX_FILE_NAME);
+        if (mboxFile.exists()) os.write(unescape(read(mboxFile, entry[0], entry[1])));
+        else os.write(inflate(read(new File(mFolder, DeflateArchive.DATA_FILE_NAME), entry[0], entry[1])));
+        return true;
+    }
+
+    /**
+     * @return the offset and length of the last mail sent to this address, according to the index, or null if there's none.
+     */
+    private long[] find(String address) throws IOException {
+        File indexFile = new File(mFolder, MboxArchive.INDEX_FILE_NAME);
+        if (!indexFile.exists()) return null;
+        long[] result = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), MboxArchive.INDEX_CHARSET));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int lengthStart = line.indexOf('\t') + 1;
+                int addressStart = line.indexOf('\t', lengthStart) + 1;
+                // Ignore incomplete lines.
+                if (lengthStart == 0 || addressStart == 0) continue;
+                if (line.length() - addressStart == address.length() && line.endsWith(address)) {
+                    result = new long[] { Long.parseLong(line.substring(0, lengthStart - 1)),
+                            Long.parseLong(line.substring(lengthStart, addressStart - 1)) };
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    private static byte[] read(File file, long offset, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) length];
+            raf.seek(offset);
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the mail without the escapes added by {@link MboxArchive}: one '&gt;' is removed from each "&gt;From " line.
+     */
+    private static byte[] unescape(byte[] bytes) {
+        byte[] result = new byte[bytes.length];
+        int length = 0;
+        int lineStart = 0;
+        while (lineStart < bytes.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < bytes.length && bytes[lineEnd++] != '\n')
+                ;
+            int start = lineStart;
+            if (bytes[start] == '>' && MboxArchive.isFromLine(bytes, start, lineEnd)) start++;
+            System.arraycopy(bytes, start, result, length, lineEnd - start);
+            length += lineEnd - start;
+            lineStart = lineEnd;
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * @return the mail compressed by {@link DeflateArchive}.
+     */
+    private byte[] inflate(byte[] bytes) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            byte[] result = new byte[bytes.length * 4];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == result.length) result = Arrays.copyOf(result, result.length * 2);
+                int count = inflater.inflate(result, length, result.length - length);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(IOUtils.readBytes(new File(mFolder, DeflateArchive.DICTIONARY_FILE_NAME)));
+                    } else if (inflater.needsInput()) throw new IOException("The archive is truncated");
+                }
+                length += count;
+            }
+            return Arrays.copyOf(result, length);
+        } catch (DataFormatException e) {
+            throw new IOException("The archive is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import ca.rmen.carmailer.Mail.Body;
+import ca.rmen.carmailer.Parser.BodyType;
+
+/**
+ * Keeps the result of {@link Parser#parse(String, BodyType, Charset)} in a folder, so that the next runs with the same body file don't
+ * need to guess the charset and convert the html to text again.<br/>
+ * 
+ * Each body is saved in a file named after a hash of the contents of the body file and of the parse options. If the body file changes,
+ * its hash changes too, and it's parsed again.
+ */
+class BodyCache {
+    private static final String TAG = BodyCache.class.getSimpleName();
+    // Change this whenever the parser gives a different result for the same file, to ignore the bodies cached by older versions.
+    private static final int VERSION = 2;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File mFolder;
+    private long mBytesRead;
+
+    BodyCache(File folder) {
+        mFolder = folder;
+    }
+
+    /**
+     * @return the key of the body parsed from the given bytes with the given options.
+     */
+    static String getKey(byte[] fileBytes, BodyType bodyType, Charset charset) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(fileBytes);
+            digest.update((VERSION + "|" + bodyType + "|" + (charset == null ? "" : charset.name())).getBytes(CHARSET));
+            byte[] hash = digest.digest();
+            StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash)
+                result.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the body saved with the given key, or null if there's none, or if it can't be read.
+     */
+    Body get(String key) {
+        File file = new File(mFolder, key);
+        if (!file.exists()) return null;
+        try {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                Charset charset = Charset.forName(is.readUTF());
+                String text = readString(is);
+                String html = is.readBoolean() ? readString(is) : null;
+                mBytesRead += file.length();
+                Log.d(TAG, "Read the body from the cache " + file);
+                return new Body(text, html, charset);
+            } finally {
+                is.close();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read the body from the cache " + file + ": " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of bytes read from the cache so far.
+     */
+    long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Save the given body with the given key. If we can't, we just log it: the body will be parsed again next time.
+     */
+    void put(String key, Body body) {
+        if (!mFolder.isDirectory() && !mFolder.mkdirs()) {
+            Log.w(TAG, "Could not create the cache folder " + mFolder, null);
+            return;
+        }
+        // Write to a temporary file first, so that another run never reads a half-written file.
+        File file = new File(mFolder, key);
+        File tmpFile = new File(mFolder, key + ".tmp");
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                os.writeUTF(body.charset.name());
+                writeString(os, body.text);
+                os.writeBoolean(body.html != null);
+                if (body.html != null) writeString(os, body.html);
+            } finally {
+                os.close();
+            }
+            // On Windows, renameTo doesn't replace an existing file.
+            if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) throw new IOException("Could not rename " + tmpFile + " to " + file);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the body to the cache " + file + ": " + e.getMessage(), e);
+            tmpFile.delete();
+        }
+    }
+
+    // DataOutputStream.writeUTF is limited to 64KB.
+    private static void writeString(DataOutputStream os, String string) throws IOException {
+        byte[] bytes = string.getBytes(CHARSET);
+        os.writeInt(bytes.length);
+        os.write(bytes);
+    }
+
+    private static String readString(DataInputStream is) throws IOException {
+        byte[] bytes = new byte[is.readInt()];
+        is.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
@@ -13,17 +13,13 @@
  */
 package ca.rmen.carmailer;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
-import java.util.Set;
 import java.util.logging.Level;
 
 import javax.mail.BodyPart;
@@ -31,17 +27,16 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
+import javax.net.ssl.SSLContext;
 
+import ca.rmen.carmailer.DomainScheduler.ScheduledRecipient;
 import ca.rmen.carmailer.Mail.Body;
 
-import com.sun.mail.util.CRLFOutputStream;
-
 /**
  * Send a mail in HTML or plain text format to a list of recipients.<br/>
  * 
@@ -50,6 +45,12 @@ import com.sun.mail.util.CRLFOutputStream;
 public class CarMailer {
 
     private static final String TAG = CarMailer.class.getSimpleName();
+    // The number of recipients we read ahead, so that we can alternate between domains.
+    private static final int MAX_QUEUED_RECIPIENTS = 10000;
+    // If every domain we read is held back by its limits, we read further ahead by this many recipients at a time, up to MAX_READ_AHEAD,
+    // looking for other domains. This happens when the recipients are sorted by domain.
+    private static final int READ_AHEAD_STEP = 1000;
+    private static final int MAX_READ_AHEAD = 200000;
 
     /**
      * Send a mail to a list of recipients. One mail will be sent to each recipient. The recipient will be on the To: field of the mail.
@@ -61,6 +62,187 @@ public class CarMailer {
     public static void sendEmail(final SmtpCredentials credentials, Mail mail, SendOptions sendOptions) {
         Log.v(TAG, "sendEmail: credentials = " + credentials + ", mail = " + mail + ", sendOptions = " + sendOptions);
 
+        // Counters and timers of the sending, readable over JMX.
+        Metrics metrics = new Metrics();
+        Session mailSession = createSession(credentials, metrics);
+
+        // The mail is the same for all the recipients whose tags don't appear in it: encode it only once for them.
+        MessageSkeleton skeleton = null;
+        try {
+            skeleton = createMessageSkeleton(mailSession, mail.headers, mail.body);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not create the message skeleton, the mail will be encoded for each recipient: " + e.getMessage(), e);
+        }
+
+        // Skip the addresses which unsubscribed or bounced.
+        SuppressionList suppressionList = null;
+        if (sendOptions.suppressionFile != null) {
+            try {
+                suppressionList = SuppressionList.open(sendOptions.suppressionFile, mail.body.charset);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read the suppression list " + sendOptions.suppressionFile + ": " + e.getMessage(), e);
+                return;
+            }
+        }
+
+        SendJournal journal = null;
+        // Keep track of who received the mail, and skip the recipients who already received it in a previous run.
+        if (sendOptions.journalFile != null && !sendOptions.dryRun) {
+            try {
+                journal = new SendJournal(sendOptions.journalFile, sendOptions.resume);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open the journal " + sendOptions.journalFile + ": " + e.getMessage(), e);
+                return;
+            }
+        }
+        // Save a copy of each mail, if requested.
+        MessageArchive archive = null;
+        if (sendOptions.outputFolder != null) {
+            try {
+                archive = MessageArchive.open(sendOptions.outputFolder, sendOptions.outputFormat);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open the archive in " + sendOptions.outputFolder + ": " + e.getMessage(), e);
+                if (journal != null) journal.close();
+                return;
+            }
+        }
+        DomainScheduler scheduler = new DomainScheduler(sendOptions.domainMailsPerSecond, sendOptions.domainConnections);
+        // The recipients who had a transient failure wait here, and are scheduled again with the new recipients once their delay is over.
+        RetryQueue retryQueue = new RetryQueue(sendOptions.maxRetries, sendOptions.retryDelay * 1000L);
+        // The mails are built, sent, and recorded by different threads, which work at the same time.
+        // The status mails are sent in the background, so that they never hold back the mails to the recipients.
+        StatusReporter reporter = null;
+        if (sendOptions.statusEmailAddress != null) {
+            try {
+                // The status mails have their own session and metrics, so that they aren't counted with the mails to the recipients.
+                Metrics reporterMetrics = new Metrics();
+                reporter = new StatusReporter(createSession(credentials, reporterMetrics), mail, sendOptions.statusEmailAddress, reporterMetrics);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not create the status reporter, no status mail will be sent: " + e.getMessage(), e);
+            }
+        }
+        SendPipeline pipeline = new SendPipeline(mailSession, mail, skeleton, sendOptions, scheduler, journal, archive, retryQueue, reporter,
+                metrics);
+        metrics.start(sendOptions.metricsFile, sendOptions.metricsInterval);
+        // Show the progress over HTTP, if requested.
+        ProgressServer progressServer = null;
+        if (sendOptions.httpPort > 0) {
+            try {
+                progressServer = new ProgressServer(sendOptions.httpPort, mail, sendOptions, metrics, pipeline.mailsProcessed);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start the progress server on port " + sendOptions.httpPort + ": " + e.getMessage(), e);
+            }
+        }
+
+        int i = 0;
+        int mailsInBatch = 0;
+        int readAhead = MAX_QUEUED_RECIPIENTS;
+        RecipientFilter recipients = null;
+        // Send one mail to each recipient.
+        try {
+            // Skip the invalid addresses and the duplicates.
+            recipients = new RecipientFilter(mail.recipients.iterator(), mail.recipientCount);
+            while (true) {
+                retryQueue.drainTo(scheduler);
+                // Read some recipients ahead, so that the scheduler can choose from several domains.
+                while (recipients.hasNext() && scheduler.size() < readAhead) {
+                    Recipient recipient = recipients.next();
+                    i++;
+                    if (journal != null && journal.wasSent(recipient)) {
+                        Log.i(TAG, "Skipping " + i + ": " + recipient.address + ", already sent.");
+                        pipeline.mailsProcessed.incrementAndGet();
+                    } else if (suppressionList != null && suppressionList.contains(recipient)) {
+                        Log.i(TAG, "Skipping " + i + ": " + recipient.address + ", suppressed.");
+                        pipeline.mailsProcessed.incrementAndGet();
+                    } else {
+                        scheduler.add(recipient, i, skeleton != null && !mail.body.usesTags(recipient.tags));
+                    }
+                }
+
+                // We've sent all the mails in one batch
+                if (!sendOptions.dryRun && mailsInBatch == sendOptions.maxMailsPerBatch) {
+                    endBatch(pipeline, retryQueue, recipients, suppressionList, reporter, journal);
+                    mailsInBatch = 0;
+                    if (progressServer != null) progressServer.setMailsInBatch(0);
+                    // If we're at the end of the batch, but not at the end of all mails,
+                    // sleep until we start the next batch.
+                    if (scheduler.size() == 0 && retryQueue.isEmpty()) break;
+                    if (sendOptions.delayBetweenBatches > 0) {
+                        Log.i(TAG, "Sleeping for " + sendOptions.delayBetweenBatches + " seconds...");
+                        if (progressServer != null) progressServer.startPause(sendOptions.delayBetweenBatches * 1000L);
+                        Thread.sleep(sendOptions.delayBetweenBatches * 1000);
+                        if (progressServer != null) progressServer.endPause();
+                    }
+                }
+
+                // Untagged mails may be sent to several recipients of the same domain at once.
+                int maxRecipients = skeleton == null ? 1 : sendOptions.maxRecipientsPerMail;
+                if (!sendOptions.dryRun) maxRecipients = Math.min(maxRecipients, sendOptions.maxMailsPerBatch - mailsInBatch);
+                // Don't wait for a throttled domain if we can still read other recipients, or if a retry is due before.
+                boolean canReadAhead = recipients.hasNext() && scheduler.size() < MAX_READ_AHEAD;
+                List<ScheduledRecipient> scheduledRecipients = scheduler.take(maxRecipients, canReadAhead ? 0 : retryQueue.getNextDelayNanos());
+                if (scheduledRecipients == null) {
+                    // The mails in progress may still fail and need a retry.
+                    pipeline.awaitIdle();
+                    // We've sent all the mails, total.
+                    if (retryQueue.isEmpty()) break;
+                    retryQueue.awaitNext();
+                    continue;
+                }
+                if (scheduledRecipients.isEmpty()) {
+                    // Every domain we read is held back: look for other domains further ahead.
+                    if (canReadAhead) readAhead = Math.min(scheduler.size() + READ_AHEAD_STEP, MAX_READ_AHEAD);
+                    continue;
+                }
+                readAhead = MAX_QUEUED_RECIPIENTS;
+                pipeline.submit(scheduledRecipients);
+                mailsInBatch += scheduledRecipients.size();
+                if (progressServer != null) {
+                    progressServer.setMailsInBatch(mailsInBatch);
+                    progressServer.setSkippedCount(recipients.getDuplicateCount() + recipients.getInvalidCount());
+                }
+            }
+            // Send the status for the last batch.
+            if (!sendOptions.dryRun && mailsInBatch > 0) endBatch(pipeline, retryQueue, recipients, suppressionList, reporter, journal);
+            pipeline.close();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted after " + i + " mails: " + e.getMessage(), e);
+            pipeline.abort();
+        } catch (IllegalStateException e) {
+            // We couldn't read the next recipient. Stop here, but let the mails in progress finish.
+            Log.e(TAG, "Could not read the recipients after " + i + " mails: " + e.getMessage(), e);
+            try {
+                pipeline.close();
+            } catch (InterruptedException e2) {
+                pipeline.abort();
+            }
+        }
+        if (recipients != null && recipients.getDuplicateCount() + recipients.getInvalidCount() > 0)
+            Log.i(TAG, "Skipped " + recipients.getDuplicateCount() + " duplicate recipients and " + recipients.getInvalidCount() + " invalid addresses.");
+        if (suppressionList != null) Log.i(TAG, "Skipped " + suppressionList.getSuppressedCount() + " suppressed addresses.");
+        if (progressServer != null) progressServer.stop();
+        if (reporter != null) {
+            try {
+                reporter.close();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while sending the status mail: " + e.getMessage(), e);
+            }
+        }
+        if (journal != null) journal.close();
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while saving the mails: " + e.getMessage(), e);
+            }
+        }
+        metrics.stop();
+    }
+
+    /**
+     * @return a mail session for the given SMTP server, whose sockets update the given metrics.
+     */
+    private static Session createSession(final SmtpCredentials credentials, Metrics metrics) {
         // Set up properties for mail sending.
         Properties props = new Properties();
         props.put("mail.from", credentials.userName);
@@ -70,65 +252,55 @@ public class CarMailer {
         props.put("mail.smtp.starttls.enable", "true");
         props.put("mail.debug", String.valueOf(Log.LOGGER.isLoggable(Level.FINER)));
         props.put("mail.transport.protocol", "smtp");
-        Session mailSession = Session.getInstance(props, new javax.mail.Authenticator() {
+        // When sending one mail to several recipients, send it to the recipients the server accepts, even if it refuses some.
+        props.put("mail.smtp.sendpartial", "true");
+        // Send the end of each mail right away, instead of waiting for the server to acknowledge what we sent before.
+        props.put("mail.smtp.socketFactory", new SmtpSocketFactory(metrics));
+        // JavaMail only enables TLSv1 for STARTTLS, which recent JVMs disable: use the protocols the JVM enables by default instead.
+        String sslProtocols = getDefaultSslProtocols();
+        if (sslProtocols != null) props.put("mail.smtp.ssl.protocols", sslProtocols);
+        return Session.getInstance(props, new javax.mail.Authenticator() {
             protected PasswordAuthentication getPasswordAuthentication() {
                 return new PasswordAuthentication(credentials.userName, credentials.password);
             }
         });
+    }
 
-        int i = 0;
-        Set<Recipient> failedRecipients = new LinkedHashSet<Recipient>();
-        // Send one mail to each recipient.
-        for (Recipient recipient : mail.recipients) {
-            try {
-                Log.i(TAG, "Sending to " + (++i) + ": " + recipient.address + ".");
-
-                Message message = createMessage(mailSession, recipient, mail.headers, mail.body);
-
-                if (sendOptions.outputFolder != null) {
-                    File file = new File(sendOptions.outputFolder, recipient.address + ".eml");
-                    FileOutputStream os = new FileOutputStream(file);
-                    FilterOutputStream fos = new CRLFOutputStream(os);
-                    message.writeTo(fos);
-                    fos.close();
-                }
-                // Send the mail.
-                if (!sendOptions.dryRun) {
-                    Transport transport = mailSession.getTransport();
-                    try {
-                        transport.connect();
-                        transport.sendMessage(message, message.getAllRecipients());
-                    } catch (MessagingException e) {
-                        Log.e(TAG, "Could not send mail to " + recipient + ": " + e.getMessage(), e);
-                        e.printStackTrace(); // Why doesn't this show up in the logs?
-                        failedRecipients.add(recipient);
-                    }
-
-                    // We've sent all the mails in one batch
-                    boolean batchEnd = i % sendOptions.maxMailsPerBatch == 0;
-                    // We've sent all the mails, total.
-                    boolean end = i == mail.recipients.size();
-
-                    // Send a progress mail at the end of the batch or the end of all mails.
-                    if ((batchEnd || end) && sendOptions.statusEmailAddress != null) {
-                        sendStatusMessage(transport, mailSession, mail, sendOptions.statusEmailAddress, i, failedRecipients);
-                    }
-                    transport.close();
+    /**
+     * @return the SSL protocols enabled by default in this JVM, separated by spaces, or null if we can't find them.
+     */
+    private static String getDefaultSslProtocols() {
+        try {
+            StringBuilder result = new StringBuilder();
+            for (String protocol : SSLContext.getDefault().getDefaultSSLParameters().getProtocols()) {
+                if (result.length() > 0) result.append(' ');
+                result.append(protocol);
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Could not find the default SSL protocols: " + e.getMessage(), e);
+            return null;
+        }
+    }
 
-                    // If we're at the end of the batch, but not at the end of all mails,
-                    // sleep until we start the next batch.
-                    if (batchEnd && !end) {
-                        Log.i(TAG, "Sleeping for " + sendOptions.delayBetweenBatches + " seconds...");
-                        Thread.sleep(sendOptions.delayBetweenBatches * 1000);
-                    }
-                }
+    /**
+     * Wait for all the mails of the batch to be sent, sync the journal, send the status mail, and close the connections.
+     */
+    private static void endBatch(SendPipeline pipeline, RetryQueue retryQueue, RecipientFilter recipients, SuppressionList suppressionList,
+            StatusReporter reporter, SendJournal journal) throws InterruptedException {
+        // Wait for all the mails of this batch to be sent.
+        pipeline.awaitIdle();
+        // We may sleep for a long time now: don't leave the outcome of the last mails only in memory.
+        if (journal != null) journal.sync();
 
-            } catch (Exception e) {
-                Log.e(TAG, "Could not send mail to " + recipient + ": " + e.getMessage(), e);
-                e.printStackTrace(); // Why doesn't this show up in the logs?
-                failedRecipients.add(recipient);
-            }
+        // Send a progress mail at the end of the batch or the end of all mails. This doesn't wait for the mail to be sent.
+        if (reporter != null) {
+            reporter.report(new StatusReporter.Progress(pipeline.mailsProcessed.get(), recipients.getDuplicateCount(), recipients
+                    .getInvalidCount(), suppressionList == null ? 0 : suppressionList.getSuppressedCount(), retryQueue.getPendingRetryCounts()));
         }
+
+        // Don't keep the connections open while we sleep between batches.
+        pipeline.connectionPool.closeAll();
     }
 
     /**
@@ -137,75 +309,71 @@ public class CarMailer {
      * @throws UnsupportedEncodingException
      * @throws MessagingException
      */
-    private static Message createMessage(Session mailSession, Recipient to, MailHeaders headers, Body body) throws UnsupportedEncodingException,
+    static Message createMessage(Session mailSession, Recipient to, MailHeaders headers, Body body) throws UnsupportedEncodingException,
             MessagingException {
 
         Log.i(TAG, "Create message for " + to);
-        String bodyText = body.text;
-        String bodyHtml = body.html;
-        for (int tagIndex = 0; tagIndex < to.tags.length; tagIndex++) {
-            bodyText = bodyText.replaceAll("%" + (tagIndex + 1), to.tags[tagIndex]);
-            if (bodyHtml != null) bodyHtml = bodyHtml.replaceAll("%" + (tagIndex + 1), to.tags[tagIndex]);
-        }
+        String bodyText = body.textTemplate.apply(to.tags);
+        String bodyHtml = body.htmlTemplate == null ? null : body.htmlTemplate.apply(to.tags);
         MimeMessage message = new CarMimeMessage(mailSession, headers.messageIdDomain);
 
         // Set the subject, from, and to fields.
+        setCommonHeaders(message, headers, body);
+        message.addRecipients(Message.RecipientType.TO, InternetAddress.parse(to.address));
+        message.setSentDate(new Date());
+
+        setContent(message, bodyText, bodyHtml, body.charset);
+        return message;
+    }
+
+    /**
+     * Create the encoded skeleton of a mail which has no tags, and will be the same for all recipients.
+     * 
+     * @throws IOException
+     * @throws MessagingException
+     */
+    static MessageSkeleton createMessageSkeleton(Session mailSession, MailHeaders headers, Body body) throws IOException, MessagingException {
+        Log.i(TAG, "Create message skeleton");
+        MimeMessage message = new CarMimeMessage(mailSession, headers.messageIdDomain);
+        setCommonHeaders(message, headers, body);
+        setContent(message, body.text, body.html, body.charset);
+        return new MessageSkeleton(message, headers);
+    }
+
+    /**
+     * Set the headers which are the same for all recipients: subject, from, and user agent.
+     */
+    private static void setCommonHeaders(MimeMessage message, MailHeaders headers, Body body) throws UnsupportedEncodingException, MessagingException {
         message.setSubject(MimeUtility.encodeText(headers.subject, body.charset.name(), "Q"));
         message.setFrom(new InternetAddress(headers.from));
         message.setHeader("User-Agent", headers.userAgent);
-        message.addRecipients(Message.RecipientType.TO, InternetAddress.parse(to.address));
-        message.setSentDate(new Date());
+    }
 
+    /**
+     * Set the content of the message, in plain text, or in both plain text and html.
+     */
+    private static void setContent(MimeMessage message, String bodyText, String bodyHtml, Charset charset) throws MessagingException {
         // Construct the mail.
         // If we have both html and text, do a multipart mail with two bodyparts
-        if (body.html != null && !body.html.isEmpty()) {
+        if (bodyHtml != null && !bodyHtml.isEmpty()) {
 
             MimeMultipart mp = new MimeMultipart("alternative");
             mp.setPreamble("This is a multi-part message in MIME format.");
             // Add the plain text version of the mail
             BodyPart bp = new MimeBodyPart();
-            bp.setContent(bodyText, "text/plain; charset=" + body.charset + "; format=flowed");
+            bp.setContent(bodyText, "text/plain; charset=" + charset + "; format=flowed");
             bp.setHeader("Content-Transfer-Encoding", "8bit");
             mp.addBodyPart(bp);
             // Add the html version of the mail
             bp = new MimeBodyPart();
-            bp.setContent(bodyHtml, "text/html; charset=" + body.charset);
+            bp.setContent(bodyHtml, "text/html; charset=" + charset);
             bp.setHeader("Content-Transfer-Encoding", "8bit");
             mp.addBodyPart(bp);
             message.setContent(mp);
         } else {
             // Just a plain text mail
             message.setHeader("Content-Transfer-Encoding", "quoted-printable");
-            message.setText(bodyText, body.charset.name());
-        }
-        return message;
-    }
-
-    /**
-     * Send the progress of our mail sending to the given to address.
-     */
-    private static void sendStatusMessage(Transport transport, Session mailSession, Mail mail, String to, int messagesSent, Set<Recipient> failedRecipients)
-            throws UnsupportedEncodingException, MessagingException {
-        Log.i(TAG, "sending status e-mail from " + mail.headers.from + " to " + to + ", " + messagesSent + " messages sent");
-        int totalRecipientCount = mail.recipients.size();
-        String subject = messagesSent + " of " + totalRecipientCount + " sent: \"" + mail.headers.subject + "\"";
-        MailHeaders statusHeaders = new MailHeaders(mail.headers.messageIdDomain, mail.headers.userAgent, mail.headers.from, subject);
-        StringBuilder bodyBuilder = new StringBuilder();
-        bodyBuilder.append("Sent " + messagesSent + " messages out of " + totalRecipientCount + ".");
-        bodyBuilder.append("\n\n");
-        if (failedRecipients.isEmpty()) {
-            bodyBuilder.append("No critical failures.\n");
-        } else {
-            bodyBuilder.append(failedRecipients.size() + " failures:\n\n");
-            for (Recipient failedRecipient : failedRecipients)
-                bodyBuilder.append(failedRecipient + "\n");
+            message.setText(bodyText, charset.name());
         }
-        Body statusBody = new Body(bodyBuilder.toString(), null, Charset.defaultCharset());
-        Recipient statusRecipient = new Recipient(to, null);
-        List<Recipient> statusRecipients = new ArrayList<Recipient>();
-        statusRecipients.add(statusRecipient);
-        Mail statusMail = new Mail(statusHeaders, statusRecipients, statusBody);
-        Message statusMessage = createMessage(mailSession, statusRecipient, statusMail.headers, statusBody);
-        transport.sendMessage(statusMessage, statusMessage.getAllRecipients());
     }
 }
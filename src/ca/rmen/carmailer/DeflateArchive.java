@@ -0,0 +1,113 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Saves all the mails in one append-only file, each one compressed separately, so that any mail can be read back without
+ * decompressing the others.<br/>
+ * 
+ * The mails we send are mostly identical, so each one is compressed with a preset dictionary: the beginning of the first mail we
+ * saved, stored in its own file. Whatever a mail has in common with the dictionary costs almost nothing.<br/>
+ * 
+ * The index file has the same format as the one of the {@link MboxArchive}: the offset and length of each compressed mail, and the
+ * address of the recipient.
+ */
+class DeflateArchive extends MessageArchive {
+    static final String DATA_FILE_NAME = "mails.deflate";
+    static final String DICTIONARY_FILE_NAME = "mails.dict";
+    // The compressor can't look back further than this, so a bigger dictionary wouldn't help.
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File mFolder;
+    private final OutputStream mData;
+    private final Writer mIndex;
+    private final Deflater mDeflater = new Deflater();
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private byte[] mDictionary;
+    private long mOffset;
+
+    /**
+     * Open the archive files in the given folder. If they exist, the new mails are appended to them, using the existing dictionary.
+     */
+    DeflateArchive(File folder) throws IOException {
+        mFolder = folder;
+        File dictionaryFile = new File(folder, DICTIONARY_FILE_NAME);
+        if (dictionaryFile.exists()) mDictionary = IOUtils.readBytes(dictionaryFile);
+        File dataFile = new File(folder, DATA_FILE_NAME);
+        mOffset = dataFile.length();
+        mData = new BufferedOutputStream(new FileOutputStream(dataFile, true), BUFFER_SIZE);
+        mIndex = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(folder, MboxArchive.INDEX_FILE_NAME), true),
+                MboxArchive.INDEX_CHARSET));
+    }
+
+    @Override
+    protected void write(Recipient recipient, byte[] message) throws IOException {
+        if (mDictionary == null) createDictionary(message);
+        mDeflater.reset();
+        mDeflater.setDictionary(mDictionary);
+        mDeflater.setInput(message);
+        mDeflater.finish();
+        long length = 0;
+        while (!mDeflater.finished()) {
+            int count = mDeflater.deflate(mBuffer);
+            mData.write(mBuffer, 0, count);
+            length += count;
+        }
+
+        mIndex.write(String.valueOf(mOffset));
+        mIndex.write('\t');
+        mIndex.write(String.valueOf(length));
+        mIndex.write('\t');
+        mIndex.write(recipient.address);
+        mIndex.write('\n');
+        mOffset += length;
+    }
+
+    @Override
+    protected void closeFiles() throws IOException {
+        mDeflater.end();
+        try {
+            mData.close();
+        } finally {
+            mIndex.close();
+        }
+    }
+
+    /**
+     * Use the beginning of the given mail as the dictionary for this mail and all the following ones.
+     */
+    private void createDictionary(byte[] message) throws IOException {
+        mDictionary = Arrays.copyOf(message, Math.min(message.length, MAX_DICTIONARY_SIZE));
+        // Without the dictionary, the archive can't be read: write it first.
+        FileOutputStream os = new FileOutputStream(new File(mFolder, DICTIONARY_FILE_NAME));
+        try {
+            os.write(mDictionary);
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which recipient to send to next. Recipients are queued by the domain of their address, and each domain may have its own rate
+ * limit and maximum number of mails in progress. The domains take turns, so a domain which is throttled doesn't hold back the
+ * others.<br/>
+ * 
+ * The limits for a domain are looked up by its name, or by {@link #OTHER_DOMAINS} for domains without their own limits. Domains
+ * without any limit are never held back.
+ */
+class DomainScheduler {
+    /**
+     * The key of the limits which apply to every domain which doesn't have its own limits.
+     */
+    static final String OTHER_DOMAINS = "*";
+
+    private final Map<String, Double> mMailsPerSecond;
+    private final Map<String, Integer> mConnections;
+    private final Map<String, DomainQueue> mQueues = new HashMap<String, DomainQueue>();
+    // The domains which have recipients waiting, in the order in which they take turns.
+    private final List<DomainQueue> mActiveQueues = new ArrayList<DomainQueue>();
+    // The domains without recipients or mails in progress, which we forget once their rate limiter is full again.
+    private final PriorityQueue<IdleQueue> mIdleQueues = new PriorityQueue<IdleQueue>();
+    private int mNextQueue;
+    private int mSize;
+
+    /**
+     * A recipient waiting in the scheduler, or being sent to.
+     */
+    static class ScheduledRecipient {
+        final Recipient recipient;
+        // The position of the recipient in the list of recipients, starting at 1.
+        final int index;
+        // True if the recipient gets the same mail as everybody else, so it can be sent in one mail with other recipients.
+        final boolean canShareMail;
+        private final DomainQueue mQueue;
+
+        private ScheduledRecipient(Recipient recipient, int index, boolean canShareMail, DomainQueue queue) {
+            this.recipient = recipient;
+            this.index = index;
+            this.canShareMail = canShareMail;
+            mQueue = queue;
+        }
+    }
+
+    /**
+     * @param mailsPerSecond the maximum number of mails per second for each domain.
+     * @param connections the maximum number of mails in progress at the same time for each domain.
+     */
+    DomainScheduler(Map<String, Double> mailsPerSecond, Map<String, Integer> connections) {
+        mMailsPerSecond = mailsPerSecond;
+        mConnections = connections;
+    }
+
+    /**
+     * Queue a recipient, to be returned later by {@link #take(int, long)}.
+     * 
+     * @param canShareMail true if the recipient may be returned with other recipients, to be sent the same mail.
+     */
+    synchronized void add(Recipient recipient, int index, boolean canShareMail) {
+        String domain = getDomain(recipient.address);
+        DomainQueue queue = mQueues.get(domain);
+        if (queue == null) {
+            queue = new DomainQueue(domain, getLimit(mMailsPerSecond, domain), getLimit(mConnections, domain));
+            mQueues.put(domain, queue);
+        }
+        if (queue.recipients.isEmpty()) mActiveQueues.add(queue);
+        queue.recipients.add(new ScheduledRecipient(recipient, index, canShareMail, queue));
+        mSize++;
+        forgetIdleQueues();
+    }
+
+    /**
+     * @return the number of recipients waiting to be returned by {@link #take(int, long)}.
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Return the next recipients of a domain whose limits allow us to send another mail. If every domain is held back by its limits,
+     * wait until one of them may send, or until a mail is done, but no longer than the given time. Once the mail is sent,
+     * {@link #done(List)} must be called.<br/>
+     * 
+     * The caller should read more recipients, or move the recipients whose retry is due, when this returns an empty list: the
+     * recipients which are held back may all be of the same domain.
+     * 
+     * @param maxRecipients the maximum number of recipients to return. They will all be of the same domain, and will be sent one mail.
+     *            Only recipients which can share a mail are returned together.
+     * @param maxWaitNanos the maximum time to wait, 0 to not wait, or {@link Long#MAX_VALUE} to wait as long as needed.
+     * @return the next recipients to send to, an empty list if every domain is still held back, or null if no recipients are waiting.
+     */
+    synchronized List<ScheduledRecipient> take(int maxRecipients, long maxWaitNanos) throws InterruptedException {
+        for (boolean waited = false;; waited = true) {
+            if (mSize == 0) return null;
+            long waitNanos = maxWaitNanos;
+            for (int i = 0; i < mActiveQueues.size(); i++) {
+                int queueIndex = (mNextQueue + i) % mActiveQueues.size();
+                DomainQueue queue = mActiveQueues.get(queueIndex);
+                // Too many mails in progress for this domain: we'll be notified when one is done.
+                if (queue.mailsInProgress >= queue.maxMailsInProgress) continue;
+                long queueWaitNanos = queue.rateLimiter == null ? 0 : queue.rateLimiter.tryAcquire();
+                if (queueWaitNanos == 0) return take(queueIndex, maxRecipients);
+                waitNanos = Math.min(waitNanos, queueWaitNanos);
+            }
+            // Let the caller check if anything changed on its side.
+            if (waited || waitNanos <= 0) return Collections.emptyList();
+            if (waitNanos == Long.MAX_VALUE) wait();
+            else TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+        }
+    }
+
+    /**
+     * Indicate that we're done sending a mail to recipients returned by {@link #take(int, long)}.
+     */
+    synchronized void done(List<ScheduledRecipient> scheduledRecipients) {
+        DomainQueue queue = scheduledRecipients.get(0).mQueue;
+        queue.mailsInProgress--;
+        // Forget about domains we don't need to remember, to avoid keeping every domain in memory. A domain with a rate limit must
+        // be remembered until its rate limiter is full again: a new queue for the domain would start with a full rate limiter.
+        if (queue.recipients.isEmpty() && queue.mailsInProgress == 0) {
+            if (queue.rateLimiter == null) mQueues.remove(queue.domain);
+            else mIdleQueues.add(new IdleQueue(queue, System.nanoTime() + queue.rateLimiter.getNanosUntilFull()));
+        }
+        forgetIdleQueues();
+        notifyAll();
+    }
+
+    /**
+     * Forget the idle domains whose rate limiter is full again.
+     */
+    private void forgetIdleQueues() {
+        long now = System.nanoTime();
+        while (!mIdleQueues.isEmpty() && mIdleQueues.peek().forgetTime - now <= 0) {
+            DomainQueue queue = mIdleQueues.poll().queue;
+            // The domain may have been used again since it became idle.
+            if (mQueues.get(queue.domain) != queue || !queue.recipients.isEmpty() || queue.mailsInProgress > 0) continue;
+            long nanosUntilFull = queue.rateLimiter.getNanosUntilFull();
+            if (nanosUntilFull == 0) mQueues.remove(queue.domain);
+            else mIdleQueues.add(new IdleQueue(queue, now + nanosUntilFull));
+        }
+    }
+
+    /**
+     * @return the first recipient of the given queue, and following ones, as long as the domain's rate limit allows it. We already
+     *         have a token from the domain's rate limiter for the first recipient.
+     */
+    private List<ScheduledRecipient> take(int queueIndex, int maxRecipients) {
+        DomainQueue queue = mActiveQueues.get(queueIndex);
+        List<ScheduledRecipient> result = new ArrayList<ScheduledRecipient>();
+        do {
+            result.add(queue.recipients.removeFirst());
+            mSize--;
+        } while (result.size() < maxRecipients && !queue.recipients.isEmpty() && result.get(0).canShareMail
+                && queue.recipients.getFirst().canShareMail && (queue.rateLimiter == null || queue.rateLimiter.tryAcquire() == 0));
+        queue.mailsInProgress++;
+        if (queue.recipients.isEmpty()) {
+            mActiveQueues.remove(queueIndex);
+            mNextQueue = queueIndex;
+        } else {
+            mNextQueue = queueIndex + 1;
+        }
+        if (mActiveQueues.isEmpty()) mNextQueue = 0;
+        else mNextQueue %= mActiveQueues.size();
+        return result;
+    }
+
+    private static <T> T getLimit(Map<String, T> limits, String domain) {
+        T limit = limits.get(domain);
+        if (limit == null) limit = limits.get(OTHER_DOMAINS);
+        return limit;
+    }
+
+    /**
+     * @return the domain of the given address, in lower case.
+     */
+    static String getDomain(String address) {
+        int end = address.length();
+        // The address may be like "John Doe <john@doe.com>"
+        if (address.endsWith(">")) end--;
+        int start = address.lastIndexOf('@', end - 1) + 1;
+        return address.substring(start, end).trim().toLowerCase(Locale.US);
+    }
+
+    private static class IdleQueue implements Comparable<IdleQueue> {
+        final DomainQueue queue;
+        // When we can forget the domain, in System.nanoTime() time.
+        final long forgetTime;
+
+        IdleQueue(DomainQueue queue, long forgetTime) {
+            this.queue = queue;
+            this.forgetTime = forgetTime;
+        }
+
+        @Override
+        public int compareTo(IdleQueue other) {
+            long diff = forgetTime - other.forgetTime;
+            return diff < 0 ? -1 : diff == 0 ? 0 : 1;
+        }
+    }
+
+    private static class DomainQueue {
+        final String domain;
+        final LinkedList<ScheduledRecipient> recipients = new LinkedList<ScheduledRecipient>();
+        final RateLimiter rateLimiter;
+        final int maxMailsInProgress;
+        int mailsInProgress;
+
+        DomainQueue(String domain, Double mailsPerSecond, Integer maxMailsInProgress) {
+            this.domain = domain;
+            rateLimiter = mailsPerSecond == null ? null : new RateLimiter(mailsPerSecond, 1);
+            this.maxMailsInProgress = maxMailsInProgress == null ? Integer.MAX_VALUE : maxMailsInProgress;
+        }
+    }
+}
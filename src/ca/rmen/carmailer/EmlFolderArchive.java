@@ -0,0 +1,79 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Saves each mail in its own eml file, named after the recipient's address.<br/>
+ * 
+ * Most file systems get slow with millions of files in one folder, so the files are spread over 65536 subfolders, chosen from a hash
+ * of the address: for example, folder/3f/a2/someone@example.com.eml.
+ */
+class EmlFolderArchive extends MessageArchive {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File mFolder;
+    // The subfolders we know exist, so that we don't ask the file system each time.
+    private final Set<String> mSubfolders = new HashSet<String>();
+
+    EmlFolderArchive(File folder) {
+        mFolder = folder;
+    }
+
+    /**
+     * @return the path of the eml file for the given address, relative to the archive folder.
+     */
+    static String getPath(String address) {
+        // Mix the bits of the hash code, so that similar addresses end up in different folders.
+        int hash = address.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return new StringBuilder(address.length() + 10).append(HEX_DIGITS[(hash >>> 28) & 0xf]).append(HEX_DIGITS[(hash >>> 24) & 0xf])
+                .append('/').append(HEX_DIGITS[(hash >>> 20) & 0xf]).append(HEX_DIGITS[(hash >>> 16) & 0xf]).append('/').append(address)
+                .append(".eml").toString();
+    }
+
+    @Override
+    protected void write(Recipient recipient, byte[] message) throws IOException {
+        String path = getPath(recipient.address);
+        String subfolder = path.substring(0, path.lastIndexOf('/'));
+        if (mSubfolders.add(subfolder)) {
+            File dir = new File(mFolder, subfolder);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                mSubfolders.remove(subfolder);
+                throw new IOException("Could not create the folder " + dir);
+            }
+        }
+        // The whole mail is already in memory: write it in one go.
+        FileOutputStream os = new FileOutputStream(new File(mFolder, path));
+        try {
+            os.write(message);
+        } finally {
+            os.close();
+        }
+    }
+
+    @Override
+    protected void closeFiles() {
+        // Each file is closed as soon as it's written.
+    }
+}
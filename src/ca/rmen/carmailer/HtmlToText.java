@@ -0,0 +1,172 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+/**
+ * Converts an HTML document to plain text in one pass over the document, without modifying it:
+ * <ul>
+ * <li>whitespace is collapsed as in {@link Element#text()}, except in &lt;pre&gt; elements,</li>
+ * <li>&lt;br&gt; elements become a new line,</li>
+ * <li>paragraphs and headings are separated by an empty line, and other block elements start on a new line,</li>
+ * <li>lines are wrapped at the last space before {@link #MAX_LINE_LENGTH} characters. Longer words are not split.</li>
+ * </ul>
+ */
+class HtmlToText implements NodeVisitor {
+    private static final int MAX_LINE_LENGTH = 72;
+
+    private final StringBuilder mText = new StringBuilder();
+    // The index in mText where the current line starts.
+    private int mLineStart;
+    // The index in mText of the last space of the current line, where we can wrap it, or -1.
+    private int mLastSpace = -1;
+    // True if we've skipped whitespace, which becomes one space if more text follows on the same line.
+    private boolean mPendingSpace;
+    // The number of <pre> elements we're in.
+    private int mPreDepth;
+
+    /**
+     * @return the text of the body of the given document.
+     */
+    static String convert(Document document) {
+        Element root = document.body() == null ? document : document.body();
+        HtmlToText visitor = new HtmlToText();
+        new NodeTraversor(visitor).traverse(root);
+        return visitor.getText();
+    }
+
+    @Override
+    public void head(Node node, int depth) {
+        if (node instanceof TextNode) {
+            String text = ((TextNode) node).getWholeText();
+            if (mPreDepth > 0) appendPreformatted(text);
+            else append(text);
+        } else if (node instanceof Element) {
+            String tagName = node.nodeName();
+            if (tagName.equals("br")) {
+                lineBreak();
+            } else if (tagName.equals("pre")) {
+                newLine();
+                mPreDepth++;
+            } else if (isParagraph(tagName)) {
+                emptyLine();
+            } else if (((Element) node).isBlock()) {
+                newLine();
+            }
+        }
+    }
+
+    @Override
+    public void tail(Node node, int depth) {
+        if (node instanceof Element) {
+            String tagName = node.nodeName();
+            if (tagName.equals("pre")) {
+                mPreDepth--;
+                newLine();
+            } else if (isParagraph(tagName)) {
+                emptyLine();
+            } else if (!tagName.equals("br") && ((Element) node).isBlock()) {
+                newLine();
+            }
+        }
+    }
+
+    private static boolean isParagraph(String tagName) {
+        return tagName.equals("p") || (tagName.length() == 2 && tagName.charAt(0) == 'h' && tagName.charAt(1) >= '1' && tagName.charAt(1) <= '6');
+    }
+
+    /**
+     * Append the given text, collapsing its whitespace, and wrapping the line if it gets too long.
+     */
+    private void append(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+                mPendingSpace = true;
+                continue;
+            }
+            if (mPendingSpace && mText.length() > mLineStart) {
+                mLastSpace = mText.length();
+                mText.append(' ');
+            }
+            mPendingSpace = false;
+            mText.append(c);
+            // Wrap the line at its last space, if there's one.
+            if (mText.length() - mLineStart > MAX_LINE_LENGTH && mLastSpace > mLineStart) {
+                mText.setCharAt(mLastSpace, '\n');
+                mLineStart = mLastSpace + 1;
+                mLastSpace = -1;
+            }
+        }
+    }
+
+    /**
+     * Append the given text as is, without wrapping it.
+     */
+    private void appendPreformatted(String text) {
+        if (mPendingSpace && mText.length() > mLineStart) mText.append(' ');
+        mPendingSpace = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            mText.append(c);
+            if (c == '\n') mLineStart = mText.length();
+        }
+        mLastSpace = -1;
+    }
+
+    /**
+     * End the current line, even if it's empty.
+     */
+    private void lineBreak() {
+        mPendingSpace = false;
+        mText.append('\n');
+        mLineStart = mText.length();
+        mLastSpace = -1;
+    }
+
+    /**
+     * End the current line, if it's not empty.
+     */
+    private void newLine() {
+        mPendingSpace = false;
+        if (mText.length() > mLineStart) lineBreak();
+    }
+
+    /**
+     * End the current line, and make sure it's followed by an empty line, unless we're at the beginning of the text.
+     */
+    private void emptyLine() {
+        newLine();
+        int length = mText.length();
+        if (length > 0 && (length < 2 || mText.charAt(length - 2) != '\n')) lineBreak();
+    }
+
+    /**
+     * @return the text, without empty lines at the end, and with a new line at the end of the last line.
+     */
+    private String getText() {
+        int length = mText.length();
+        while (length > 0 && mText.charAt(length - 1) == '\n')
+            length--;
+        if (length == 0) return "";
+        mText.setLength(length);
+        return mText.append('\n').toString();
+    }
+}
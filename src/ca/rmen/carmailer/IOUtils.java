@@ -14,12 +14,13 @@
 package ca.rmen.carmailer;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -28,24 +29,29 @@ import java.util.List;
  * Utility methods for reading files.
  */
 class IOUtils {
+    private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+
     /**
      * @return the contents of the given file
      */
     static String readFile(File file, Charset charset) throws IOException {
-        InputStream is = new FileInputStream(file);
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int read;
+        return new String(readBytes(file), charset.name());
+    }
+
+    /**
+     * @return the bytes of the given file
+     */
+    static byte[] readBytes(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
         try {
-            while ((read = is.read(buffer)) != -1) {
-                os.write(buffer, 0, read);
-                os.flush();
-            }
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) throw new IOException(file + " is too big");
+            byte[] bytes = new byte[(int) length];
+            raf.readFully(bytes);
+            return bytes;
         } finally {
-            is.close();
-            os.close();
+            raf.close();
         }
-        return os.toString(charset.name());
     }
 
     /**
@@ -57,13 +63,86 @@ class IOUtils {
         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filePath), charset));
         List<String> result = new ArrayList<String>();
         for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-            // remove comments
-            line = line.replaceAll("#.*$", "");
-            line = line.trim();
+            line = stripComment(line);
             if (line.isEmpty()) continue;
             result.add(line);
         }
         reader.close();
         return result;
     }
+
+    /**
+     * @return the given line without its comment (anything after a #), and without leading and trailing whitespace.
+     */
+    static String stripComment(String line) {
+        int commentStart = line.indexOf('#');
+        if (commentStart >= 0) line = line.substring(0, commentStart);
+        return line.trim();
+    }
+
+    /**
+     * @return the number of lines in the given file which are not empty, and not only a comment. These are the lines which would be
+     *         returned by {@link #readLines(String, Charset)}.
+     * @throws IOException
+     */
+    static int countLines(File file, Charset charset) throws IOException {
+        // If the charset is ASCII-compatible, we can count the lines directly in the bytes of the file, without decoding them.
+        if (!isAsciiCompatible(charset)) return countDecodedLines(file, charset);
+
+        FileInputStream is = new FileInputStream(file);
+        int count = 0;
+        try {
+            FileChannel channel = is.getChannel();
+            long size = channel.size();
+            boolean lineHasContent = false;
+            boolean inComment = false;
+            // Map the file in chunks, as one mapping can't be larger than 2 GB.
+            for (long position = 0; position < size; position += MAX_MAPPING_SIZE) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPING_SIZE, size - position));
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    // Like BufferedReader.readLine(), a line ends with \n, \r, or \r\n.
+                    if (b == '\n' || b == '\r') {
+                        if (lineHasContent) count++;
+                        lineHasContent = false;
+                        inComment = false;
+                    } else if (inComment) {
+                        continue;
+                    } else if (b == '#') {
+                        inComment = true;
+                    } else if ((b & 0xff) > ' ') {
+                        // Same definition of whitespace as String.trim()
+                        lineHasContent = true;
+                    }
+                }
+            }
+            if (lineHasContent) count++;
+        } finally {
+            is.close();
+        }
+        return count;
+    }
+
+    /**
+     * @return true if every byte below 0x80 is always a whole ASCII character in the given charset. In that case, we can find lines,
+     *         comments and separators directly in the bytes of a file. This isn't true for charsets like Shift_JIS, GBK or Big5, where
+     *         the second byte of a character may be a |.
+     */
+    static boolean isAsciiCompatible(Charset charset) {
+        String name = charset.name();
+        return name.equals("UTF-8") || name.equals("US-ASCII") || name.startsWith("ISO-8859-") || name.startsWith("windows-125");
+    }
+
+    private static int countDecodedLines(File file, Charset charset) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), charset));
+        int count = 0;
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!stripComment(line).isEmpty()) count++;
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
 }
\ No newline at end of file
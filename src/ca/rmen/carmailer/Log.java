@@ -72,7 +72,7 @@ class Log {
         log(Level.INFO, tag, message, null);
     }
 
-    static void w(String tag, String message, Throwable t) { // NO_UCD (unused code)
+    static void w(String tag, String message, Throwable t) {
         log(Level.WARNING, tag, message, t);
     }
 
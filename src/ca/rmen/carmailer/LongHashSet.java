@@ -0,0 +1,91 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+/**
+ * A set of longs, stored in one array with open addressing and linear probing: each value takes 8 bytes, plus the free slots, instead
+ * of the 50-odd bytes of a Long in a HashSet.<br/>
+ * 
+ * The values are expected to be hashes already: they are used as is to find their slot. The table size doesn't need to be a power of
+ * two, so that it can be sized close to the expected number of values.
+ */
+class LongHashSet {
+    private static final double MAX_LOAD = 0.75;
+
+    // 0 marks a free slot, so it isn't stored in the table.
+    private long[] mTable;
+    private boolean mContainsZero;
+    private int mSize;
+
+    /**
+     * @param expectedSize the set won't need to grow until it has this many values.
+     */
+    LongHashSet(int expectedSize) {
+        mTable = new long[Math.max(16, (int) Math.min(Integer.MAX_VALUE - 8, (long) (expectedSize / MAX_LOAD) + 1))];
+    }
+
+    /**
+     * @return true if the value wasn't already in the set.
+     */
+    boolean add(long value) {
+        if (value == 0) {
+            if (mContainsZero) return false;
+            mContainsZero = true;
+            mSize++;
+            return true;
+        }
+        int slot = find(mTable, value);
+        if (mTable[slot] == value) return false;
+        mTable[slot] = value;
+        mSize++;
+        if (mSize > mTable.length * MAX_LOAD) grow();
+        return true;
+    }
+
+    /**
+     * @return true if the value is in the set.
+     */
+    boolean contains(long value) {
+        if (value == 0) return mContainsZero;
+        return mTable[find(mTable, value)] == value;
+    }
+
+    /**
+     * @return the number of values in the set.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the slot of the given value in the given table, or the free slot where it should go.
+     */
+    private static int find(long[] table, long value) {
+        // Map the high bits of the value to [0, table.length).
+        int slot = (int) (((value >>> 32) * table.length) >>> 32);
+        while (table[slot] != 0 && table[slot] != value) {
+            if (++slot == table.length) slot = 0;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] table = new long[(int) Math.min(Integer.MAX_VALUE - 8, mTable.length + (long) mTable.length / 2)];
+        if (table.length == mTable.length) throw new IllegalStateException("Too many values: " + mSize);
+        for (long value : mTable) {
+            if (value != 0) table[find(table, value)] = value;
+        }
+        mTable = table;
+    }
+}
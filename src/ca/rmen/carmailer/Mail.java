@@ -21,7 +21,8 @@ import java.util.List;
  */
 public class Mail {
     public final MailHeaders headers;
-    public final List<Recipient> recipients;
+    public final Iterable<Recipient> recipients;
+    public final int recipientCount;
     public final Body body;
 
     /**
@@ -30,11 +31,32 @@ public class Mail {
      * @param body The body of the mail.
      */
     public Mail(MailHeaders headers, List<Recipient> to, Body body) {
+        this(headers, to, to.size(), body);
+    }
+
+    /**
+     * @param headers the mail headers
+     * @param to The {@link Recipient}s which will appear in the To: header in the mail. They will be iterated only once, so they
+     *            may be read lazily, for example with a {@link RecipientFile}.
+     * @param recipientCount the number of recipients, used to report the progress.
+     * @param body The body of the mail.
+     */
+    public Mail(MailHeaders headers, Iterable<Recipient> to, int recipientCount, Body body) {
         this.headers = headers;
         this.recipients = to;
+        this.recipientCount = recipientCount;
         this.body = body;
     }
 
+    /**
+     * @param headers the mail headers
+     * @param to The {@link Recipient}s which will appear in the To: header in the mail.
+     * @param body The body of the mail.
+     */
+    public Mail(MailHeaders headers, RecipientFile to, Body body) {
+        this(headers, to, to.size(), body);
+    }
+
     /**
      * The body content of the mail.
      * 
@@ -43,6 +65,9 @@ public class Mail {
         public final String text;
         public final String html;
         public final Charset charset;
+        // The text and html, ready for tag substitution.
+        final Template textTemplate;
+        final Template htmlTemplate;
 
         /**
          * @param text the mail body in plain text format. Must not be null.
@@ -53,6 +78,23 @@ public class Mail {
             this.text = text;
             this.html = html;
             this.charset = charset;
+            this.textTemplate = Template.compile(text);
+            this.htmlTemplate = html == null ? null : Template.compile(html);
+        }
+
+        /**
+         * @return true if the text or html contain tag placeholders, which will be different for each recipient.
+         */
+        boolean hasTags() {
+            return textTemplate.hasTags() || (htmlTemplate != null && htmlTemplate.hasTags());
+        }
+
+        /**
+         * @return true if at least one of the given tags appears in the text or html. If not, the body is the same as for a recipient
+         *         without tags.
+         */
+        boolean usesTags(String[] tags) {
+            return textTemplate.usesTags(tags) || (htmlTemplate != null && htmlTemplate.usesTags(tags));
         }
     }
 }
\ No newline at end of file
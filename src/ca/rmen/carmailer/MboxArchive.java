@@ -0,0 +1,115 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Saves all the mails in one append-only file, in the mboxrd format, instead of one file per mail.<br/>
+ * 
+ * An index file has one line for each mail: the offset of the mail in the mbox file, its length, and the address of the recipient,
+ * separated by tabs. Lines of the mail starting with "From " (after any number of '&gt;') are escaped with one more '&gt;', and the length
+ * in the index includes these escapes.
+ */
+class MboxArchive extends MessageArchive {
+    static final String MBOX_FILE_NAME = "mails.mbox";
+    static final String INDEX_FILE_NAME = "mails.idx";
+    static final Charset INDEX_CHARSET = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final byte[] FROM = "From ".getBytes(INDEX_CHARSET);
+
+    private final OutputStream mMbox;
+    private final Writer mIndex;
+    private final DateFormat mDateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.US);
+    private long mOffset;
+
+    /**
+     * Open the mbox and index files in the given folder. If they exist, the new mails are appended to them.
+     */
+    MboxArchive(File folder) throws IOException {
+        File mboxFile = new File(folder, MBOX_FILE_NAME);
+        mOffset = mboxFile.length();
+        mMbox = new BufferedOutputStream(new FileOutputStream(mboxFile, true), BUFFER_SIZE);
+        mIndex = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(folder, INDEX_FILE_NAME), true), INDEX_CHARSET));
+    }
+
+    @Override
+    protected void write(Recipient recipient, byte[] message) throws IOException {
+        byte[] separator = ("From MAILER-DAEMON " + mDateFormat.format(new Date()) + "\n").getBytes(INDEX_CHARSET);
+        mMbox.write(separator);
+        long start = mOffset + separator.length;
+        long length = 0;
+        int lineStart = 0;
+        while (lineStart < message.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < message.length && message[lineEnd++] != '\n')
+                ;
+            if (isFromLine(message, lineStart, lineEnd)) {
+                mMbox.write('>');
+                length++;
+            }
+            mMbox.write(message, lineStart, lineEnd - lineStart);
+            length += lineEnd - lineStart;
+            lineStart = lineEnd;
+        }
+        // A blank line separates the mails.
+        if (message.length > 0 && message[message.length - 1] != '\n') {
+            mMbox.write('\n');
+            mOffset++;
+        }
+        mMbox.write('\n');
+        mOffset += separator.length + length + 1;
+
+        mIndex.write(String.valueOf(start));
+        mIndex.write('\t');
+        mIndex.write(String.valueOf(length));
+        mIndex.write('\t');
+        mIndex.write(recipient.address);
+        mIndex.write('\n');
+    }
+
+    @Override
+    protected void closeFiles() throws IOException {
+        try {
+            mMbox.close();
+        } finally {
+            mIndex.close();
+        }
+    }
+
+    /**
+     * @return true if the line between start and end is "From " preceded by any number of '&gt;'.
+     */
+    static boolean isFromLine(byte[] bytes, int start, int end) {
+        while (start < end && bytes[start] == '>')
+            start++;
+        if (end - start < FROM.length) return false;
+        for (int i = 0; i < FROM.length; i++) {
+            if (bytes[start + i] != FROM[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import ca.rmen.carmailer.SendOptions.OutputFormat;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * Saves a copy of each mail we send.<br/>
+ * 
+ * The mails are written to disk by a thread of the archive, so that slow disks don't slow down the sending. If the disk can't keep up,
+ * {@link #add(Recipient, byte[])} waits until the archive has written a few mails.
+ */
+abstract class MessageArchive {
+    private static final String TAG = MessageArchive.class.getSimpleName();
+    // The maximum number of mails waiting to be written.
+    private static final int QUEUE_SIZE = 100;
+
+    private static class Entry {
+        final Recipient recipient;
+        final byte[] message;
+
+        Entry(Recipient recipient, byte[] message) {
+            this.recipient = recipient;
+            this.message = message;
+        }
+    }
+
+    // Tells the writer thread to stop.
+    private static final Entry STOP = new Entry(null, null);
+
+    private final BlockingQueue<Entry> mQueue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+    private final Thread mWriter;
+
+    /**
+     * @return an archive in the given folder, in the given format.
+     */
+    static MessageArchive open(File folder, OutputFormat format) throws IOException {
+        MessageArchive archive;
+        switch (format) {
+        case MBOX:
+            archive = new MboxArchive(folder);
+            break;
+        case DEFLATE:
+            archive = new DeflateArchive(folder);
+            break;
+        case EML:
+        default:
+            archive = new EmlFolderArchive(folder);
+        }
+        archive.mWriter.start();
+        return archive;
+    }
+
+    /**
+     * @return the message as it would be written in an eml file, with CRLF line endings.
+     */
+    static byte[] toBytes(Message message) throws IOException, MessagingException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream os = new CRLFOutputStream(bytes);
+        message.writeTo(os);
+        os.close();
+        return bytes.toByteArray();
+    }
+
+    MessageArchive() {
+        mWriter = new Thread(new Writer(), TAG + "-writer");
+    }
+
+    /**
+     * Save the mail sent to the given recipient. This returns as soon as there's room in the queue of mails to be written.
+     * 
+     * @param message the mail, as returned by {@link #toBytes(Message)}.
+     */
+    void add(Recipient recipient, byte[] message) throws InterruptedException {
+        mQueue.put(new Entry(recipient, message));
+    }
+
+    /**
+     * Write all the mails left in the queue, and close the archive.
+     */
+    void close() throws InterruptedException {
+        mQueue.put(STOP);
+        mWriter.join();
+        try {
+            closeFiles();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close the archive: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write one mail to disk. This is always called on the same thread.
+     */
+    protected abstract void write(Recipient recipient, byte[] message) throws IOException;
+
+    /**
+     * Close any files left open by {@link #write(Recipient, byte[])}.
+     */
+    protected abstract void closeFiles() throws IOException;
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            try {
+                for (Entry entry = mQueue.take(); entry != STOP; entry = mQueue.take()) {
+                    try {
+                        write(entry.recipient, entry.message);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not save the mail to " + entry.recipient.address + ": " + e.getMessage(), e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Writer interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * The encoded bytes of a mail which is identical for all recipients: all the headers except To, Date and Message-ID, and the whole
+ * encoded body.<br/>
+ * 
+ * The skeleton is encoded once, and the messages created by {@link #createMessage(Session, Recipient)} or
+ * {@link #createMessage(Session)} only write their own To, Date and Message-ID headers before copying the skeleton bytes.
+ */
+class MessageSkeleton {
+    private static final String[] RECIPIENT_HEADERS = new String[] { "To", "Date", "Message-ID" };
+    private static final String UNDISCLOSED_RECIPIENTS = "undisclosed-recipients:;";
+
+    private final MailHeaders mHeaders;
+    private final byte[] mBytes;
+
+    /**
+     * @param template a message with all the headers and content which are common to all recipients.
+     */
+    MessageSkeleton(MimeMessage template, MailHeaders headers) throws IOException, MessagingException {
+        mHeaders = headers;
+        template.saveChanges();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        template.writeTo(os, RECIPIENT_HEADERS);
+        mBytes = os.toByteArray();
+    }
+
+    /**
+     * @return a message for the given recipient, which will write the skeleton bytes as its headers and content.
+     */
+    Message createMessage(Session mailSession, Recipient to) throws MessagingException {
+        SkeletonMessage message = new SkeletonMessage(mailSession, mHeaders.messageIdDomain, mBytes);
+        // The From is only used to determine the envelope sender: it's already in the skeleton bytes.
+        message.setFrom(new InternetAddress(mHeaders.from));
+        message.addRecipients(Message.RecipientType.TO, InternetAddress.parse(to.address));
+        message.setSentDate(new Date());
+        return message;
+    }
+
+    /**
+     * @return a message to be sent to several recipients at once. The recipients won't see each other: the To header says
+     *         "undisclosed-recipients", and the recipients are only given to the SMTP server.
+     */
+    Message createMessage(Session mailSession) throws MessagingException {
+        SkeletonMessage message = new SkeletonMessage(mailSession, mHeaders.messageIdDomain, mBytes);
+        message.setFrom(new InternetAddress(mHeaders.from));
+        message.setHeader("To", UNDISCLOSED_RECIPIENTS);
+        message.setSentDate(new Date());
+        return message;
+    }
+
+    private static class SkeletonMessage extends CarMimeMessage {
+        private final byte[] mSkeletonBytes;
+
+        SkeletonMessage(Session session, String messageIdDomain, byte[] skeletonBytes) throws MessagingException {
+            super(session, messageIdDomain);
+            mSkeletonBytes = skeletonBytes;
+            updateMessageID();
+        }
+
+        /**
+         * Write our per-recipient headers, followed by the skeleton.
+         */
+        @Override
+        public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+            Set<String> headerNames = new HashSet<String>(Arrays.asList(RECIPIENT_HEADERS));
+            if (ignoreList != null) headerNames.removeAll(Arrays.asList(ignoreList));
+            @SuppressWarnings("unchecked")
+            Enumeration<String> headerLines = getMatchingHeaderLines(headerNames.toArray(new String[headerNames.size()]));
+            while (headerLines.hasMoreElements()) {
+                os.write(headerLines.nextElement().getBytes("US-ASCII"));
+                os.write('\r');
+                os.write('\n');
+            }
+            os.write(mSkeletonBytes);
+            os.flush();
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters, timers and gauges which show how the sending is going, while it's going.<br/>
+ * 
+ * They can be read over JMX, as the attributes of the ca.rmen.carmailer:type=Metrics MBean, and written periodically to a file in the
+ * Prometheus text format.
+ */
+class Metrics implements DynamicMBean {
+    private static final String TAG = Metrics.class.getSimpleName();
+    private static final String PROMETHEUS_PREFIX = "carmailer_";
+    private static final String OBJECT_NAME = "ca.rmen.carmailer:type=Metrics";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int RECENT_FAILURE_COUNT = 20;
+
+    /**
+     * A metric, which has one or more values.
+     */
+    abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Add the values of this metric to the given map, with their names.
+         */
+        abstract void getValues(Map<String, Number> values);
+
+        /**
+         * Append this metric to the given text, in the Prometheus format.
+         */
+        abstract void writePrometheus(StringBuilder text);
+    }
+
+    /**
+     * A value which only goes up.
+     */
+    static class Counter extends Metric {
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        void increment() {
+            mValue.incrementAndGet();
+        }
+
+        void add(long value) {
+            mValue.addAndGet(value);
+        }
+
+        long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void getValues(Map<String, Number> values) {
+            values.put(name, get());
+        }
+
+        @Override
+        void writePrometheus(StringBuilder text) {
+            writeHeader(text, name, help, "counter");
+            writeValue(text, name, get());
+        }
+    }
+
+    /**
+     * The number of times something happened, and how long it took in total and at most.
+     */
+    static class Timer extends Metric {
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        Timer(String name, String help) {
+            super(name, help);
+        }
+
+        /**
+         * Record something which started at the given {@link System#nanoTime()}, and just ended.
+         */
+        void record(long startNanos) {
+            long nanos = System.nanoTime() - startNanos;
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            for (long max = mMaxNanos.get(); nanos > max && !mMaxNanos.compareAndSet(max, nanos); max = mMaxNanos.get())
+                ;
+        }
+
+        @Override
+        void getValues(Map<String, Number> values) {
+            values.put(name + "_count", mCount.get());
+            values.put(name + "_sum", mTotalNanos.get() / 1e9);
+            values.put(name + "_max", mMaxNanos.get() / 1e9);
+        }
+
+        @Override
+        void writePrometheus(StringBuilder text) {
+            writeHeader(text, name, help, "summary");
+            writeValue(text, name + "_count", mCount.get());
+            writeValue(text, name + "_sum", mTotalNanos.get() / 1e9);
+            writeHeader(text, name + "_max", "Maximum of " + name + ".", "gauge");
+            writeValue(text, name + "_max", mMaxNanos.get() / 1e9);
+        }
+    }
+
+    /**
+     * A value which goes up and down.
+     */
+    abstract static class Gauge extends Metric {
+        Gauge(String name, String help) {
+            super(name, help);
+        }
+
+        abstract long get();
+
+        @Override
+        void getValues(Map<String, Number> values) {
+            values.put(name, get());
+        }
+
+        @Override
+        void writePrometheus(StringBuilder text) {
+            writeHeader(text, name, help, "gauge");
+            writeValue(text, name, get());
+        }
+    }
+
+    /**
+     * A gauge which we increment and decrement ourselves.
+     */
+    static class Level extends Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        Level(String name, String help) {
+            super(name, help);
+        }
+
+        void increment() {
+            mValue.incrementAndGet();
+        }
+
+        void decrement() {
+            mValue.decrementAndGet();
+        }
+
+        @Override
+        long get() {
+            return mValue.get();
+        }
+    }
+
+    private final List<Metric> mMetrics = new ArrayList<Metric>();
+    final Counter mailsSent = add(new Counter("mails_sent_total", "Recipients the SMTP server accepted the mail for."));
+    final Counter mailsFailed = add(new Counter("mails_failed_total", "Recipients we could not send the mail to."));
+    final Counter mailsRetried = add(new Counter("mails_retried_total", "Recipients put in the retry queue after a temporary failure."));
+    final Counter smtpReconnects = add(new Counter("smtp_reconnects_total", "Mails sent again on a new SMTP connection, after losing the previous one."));
+    final Counter bytesSent = add(new Counter("bytes_sent_total", "Bytes sent to the SMTP server."));
+    final Timer connect = add(new Timer("connect_seconds", "Opening a TCP connection to the SMTP server."));
+    final Timer login = add(new Timer("login_seconds", "Starting an SMTP session: connection, greeting, EHLO, STARTTLS and AUTH."));
+    final Timer build = add(new Timer("build_seconds", "Creating a mail."));
+    final Timer send = add(new Timer("send_seconds", "Sending a mail, including opening the SMTP connection if needed, whether it succeeds or fails."));
+    final Level activeConnections = add(new Level("active_connections", "Open SMTP connections."));
+
+    // The last failures, in a ring buffer.
+    private final AtomicReferenceArray<String> mRecentFailures = new AtomicReferenceArray<String>(RECENT_FAILURE_COUNT);
+    private final AtomicLong mFailureIndex = new AtomicLong();
+
+    private ObjectName mObjectName;
+    private ScheduledExecutorService mExporter;
+    private File mPrometheusFile;
+
+    /**
+     * Add a metric to the ones we export.
+     * 
+     * @return the metric.
+     */
+    synchronized <T extends Metric> T add(T metric) {
+        mMetrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * Remember this failure as one of the recent failures. This never blocks.
+     */
+    void addRecentFailure(String failure) {
+        mRecentFailures.set((int) (mFailureIndex.getAndIncrement() % RECENT_FAILURE_COUNT), failure);
+    }
+
+    /**
+     * @return the last failures given to {@link #addRecentFailure(String)}, the most recent first.
+     */
+    List<String> getRecentFailures() {
+        List<String> result = new ArrayList<String>();
+        long end = mFailureIndex.get();
+        for (long i = end - 1; i >= 0 && i >= end - RECENT_FAILURE_COUNT; i--) {
+            String failure = mRecentFailures.get((int) (i % RECENT_FAILURE_COUNT));
+            if (failure != null) result.add(failure);
+        }
+        return result;
+    }
+
+    /**
+     * @return the current value of each metric, by name.
+     */
+    synchronized Map<String, Number> getValues() {
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        for (Metric metric : mMetrics)
+            metric.getValues(values);
+        return values;
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text format.
+     */
+    synchronized String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        for (Metric metric : mMetrics)
+            metric.writePrometheus(text);
+        return text.toString();
+    }
+
+    /**
+     * Make the metrics available over JMX, and, if a file is given, write them to that file every few seconds, until {@link #stop()}
+     * is called.
+     */
+    void start(final File prometheusFile, int intervalSeconds) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, objectName);
+            mObjectName = objectName;
+        } catch (JMException e) {
+            Log.w(TAG, "Could not publish the metrics over JMX: " + e.getMessage(), e);
+        }
+        if (prometheusFile == null) return;
+        mPrometheusFile = prometheusFile;
+        mExporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-exporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExporter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writePrometheus(prometheusFile);
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop publishing the metrics. The metrics file is written one last time.
+     */
+    void stop() {
+        if (mExporter != null) {
+            mExporter.shutdown();
+            try {
+                mExporter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Interrupted while stopping the exporter");
+            }
+            writePrometheus(mPrometheusFile);
+        }
+        if (mObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+            } catch (JMException e) {
+                Log.w(TAG, "Could not unregister the metrics from JMX: " + e.getMessage(), e);
+            }
+            mObjectName = null;
+        }
+    }
+
+    /**
+     * Write the metrics to a temporary file, then rename it, so that readers never see a half-written file.
+     */
+    void writePrometheus(File file) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), CHARSET);
+            try {
+                writer.write(toPrometheus());
+            } finally {
+                writer.close();
+            }
+            // On Windows, renameTo doesn't replace an existing file.
+            if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) throw new IOException("Could not rename " + tmpFile
+                    + " to " + file);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the metrics to " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeHeader(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(PROMETHEUS_PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PROMETHEUS_PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeValue(StringBuilder text, String name, long value) {
+        text.append(PROMETHEUS_PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeValue(StringBuilder text, String name, double value) {
+        text.append(PROMETHEUS_PREFIX).append(name).append(' ').append(String.format(Locale.US, "%.6f", value)).append('\n');
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = getValues().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = getValues();
+        AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) result.add(new Attribute(attribute, value));
+        }
+        return result;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> values = getValues();
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Number> value : values.entrySet())
+            attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(), value.getKey(), true, false, false));
+        return new MBeanInfo(getClass().getName(), "CarMailer metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                null, null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        // We have no operations.
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+}
@@ -13,16 +13,17 @@
  */
 package ca.rmen.carmailer;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import ca.rmen.carmailer.Mail.Body;
@@ -37,7 +38,8 @@ import com.glaforge.i18n.io.CharsetToolkit;
 public class Parser {
 
     private static final String TAG = Parser.class.getSimpleName();
-    private static final int MAX_LINE_LENGTH = 72;
+    // The number of bytes we look at to guess the charset.
+    private static final int GUESS_CHARSET_BYTES = 1024;
 
     /**
      * Specify what format the mail body file should be read as.
@@ -60,6 +62,33 @@ public class Parser {
         AUTO
     };
 
+    /**
+     * The steps of {@link Parser#parse(String, BodyType, Charset, File, ParseListener)}.
+     */
+    public static enum ParsePhase {
+        READ_FILE, GUESS_CHARSET, PARSE_HTML, HTML_TO_TEXT, READ_CACHE, WRITE_CACHE
+    };
+
+    /**
+     * Is told how long each step of the parsing took, to see where the time goes.
+     */
+    public static interface ParseListener {
+        /**
+         * @param phase the step which was just done.
+         * @param bytesRead the number of bytes read from the disk during this step.
+         * @param durationNanos how long the step took.
+         */
+        void onPhaseDone(ParsePhase phase, long bytesRead, long durationNanos);
+    }
+
+    // By default, log how long each step took.
+    private static final ParseListener LOG_LISTENER = new ParseListener() {
+        @Override
+        public void onPhaseDone(ParsePhase phase, long bytesRead, long durationNanos) {
+            Log.d(TAG, phase + ": " + bytesRead + " bytes read in " + durationNanos / 1000 + " us");
+        }
+    };
+
     /**
      * Read the file at the given path, and return a Body with the text and html versions of the file.
      * 
@@ -70,20 +99,76 @@ public class Parser {
      * @return the content of the mail in plain text and/or HTML format, with the given charset or a charset we were able to guess.
      */
     public static Body parse(String filePath, BodyType bodyType, Charset charset) throws FileNotFoundException, IOException {
+        return parse(filePath, bodyType, charset, null);
+    }
+
+    /**
+     * Read the file at the given path, and return a Body with the text and html versions of the file. If the same file was already
+     * parsed with the same options, and saved in the given cache folder, the body is read from the cache instead.
+     * 
+     * @param cacheFolder the folder where the parsed bodies are saved. If null, the file is always parsed.
+     * @see #parse(String, BodyType, Charset)
+     */
+    public static Body parse(String filePath, BodyType bodyType, Charset charset, File cacheFolder) throws FileNotFoundException,
+            IOException {
+        return parse(filePath, bodyType, charset, cacheFolder, LOG_LISTENER);
+    }
+
+    /**
+     * Read the file at the given path, and return a Body with the text and html versions of the file. The file is read from the disk
+     * only once.
+     * 
+     * @param listener is told how long each step took.
+     * @see #parse(String, BodyType, Charset, File)
+     */
+    public static Body parse(String filePath, BodyType bodyType, Charset charset, File cacheFolder, ParseListener listener)
+            throws FileNotFoundException, IOException {
+        long start = System.nanoTime();
+        byte[] bytes = IOUtils.readBytes(new File(filePath));
+        listener.onPhaseDone(ParsePhase.READ_FILE, bytes.length, System.nanoTime() - start);
+        if (cacheFolder == null) return parse(filePath, bytes, bodyType, charset, listener);
+
+        start = System.nanoTime();
+        BodyCache cache = new BodyCache(cacheFolder);
+        String key = BodyCache.getKey(bytes, bodyType, charset);
+        Body body = cache.get(key);
+        listener.onPhaseDone(ParsePhase.READ_CACHE, cache.getBytesRead(), System.nanoTime() - start);
+        if (body == null) {
+            body = parse(filePath, bytes, bodyType, charset, listener);
+            start = System.nanoTime();
+            cache.put(key, body);
+            listener.onPhaseDone(ParsePhase.WRITE_CACHE, 0, System.nanoTime() - start);
+        }
+        return body;
+    }
+
+    /**
+     * @param filePath the path of the file the bytes were read from.
+     * @param bytes the contents of the file.
+     */
+    private static Body parse(String filePath, byte[] bytes, BodyType bodyType, Charset charset, ParseListener listener) throws IOException {
         final Body body;
-        File bodyFile = new File(filePath);
         boolean shouldGuessCharset = charset == null;
-        if (shouldGuessCharset) charset = CharsetToolkit.guessEncoding(bodyFile, 1024);
-        String bodyText = IOUtils.readFile(bodyFile, charset);
+        if (shouldGuessCharset) {
+            long start = System.nanoTime();
+            charset = guessCharset(bytes);
+            listener.onPhaseDone(ParsePhase.GUESS_CHARSET, 0, System.nanoTime() - start);
+        }
+        String bodyText = new String(bytes, charset.name());
         if (bodyType == BodyType.HTML || bodyType == BodyType.AUTO) {
-            Document document = Jsoup.parse(bodyFile, null);
+            long start = System.nanoTime();
+            // Let jsoup find the charset from the http-equiv meta tag, as if it read the file itself.
+            Document document = Jsoup.parse(new ByteArrayInputStream(bytes), null, new File(filePath).getAbsolutePath());
+            listener.onPhaseDone(ParsePhase.PARSE_HTML, 0, System.nanoTime() - start);
             Elements elements = document.getAllElements();
             // If we've forced html format, or we have some real html elements,
             // the body will contain an html part
             if (bodyType == BodyType.HTML || elements.size() > 4) {
                 String html = bodyText;
                 if (shouldGuessCharset) charset = document.outputSettings().charset();
+                start = System.nanoTime();
                 String text = htmlToText(document);
+                listener.onPhaseDone(ParsePhase.HTML_TO_TEXT, 0, System.nanoTime() - start);
                 body = new Body(text, html, charset);
             }
             // We're in auto mode and didn't detect real html elements. Use plain text only.
@@ -99,36 +184,25 @@ public class Parser {
         return body;
     }
 
+    /**
+     * @return the charset guessed from the beginning of the given file contents.
+     */
+    private static Charset guessCharset(byte[] bytes) {
+        // Look at the same bytes as CharsetToolkit.guessEncoding(File, int) would.
+        CharsetToolkit charsetToolkit = new CharsetToolkit(Arrays.copyOf(bytes, GUESS_CHARSET_BYTES));
+        charsetToolkit.setDefaultCharset(CharsetToolkit.getDefaultSystemCharset());
+        return charsetToolkit.guessEncoding();
+    }
+
     /**
      * Convert an HTML document to text. Just calling {@link Document#text()} is not enough, as &lt;p&gt; and &lt;br&gt; elements will not be replaced with new
-     * lines. This method replaces br elements with a single newline, and p elements with two newlines.
-     * 
-     * http://stackoverflow.com/questions/5640334/how-do-i-preserve-line-breaks-when-using-jsoup-to-convert-html-to-plain-text
+     * lines.
      * 
      * @return the content of the HTML document as plain text.
      * @throws IOException
      */
     private static String htmlToText(Document document) throws IOException {
-        final String placeholder = "#OMGOMG#";
-
-        // Replace all br's with a single placeholder
-        Elements elements = document.getElementsByTag("br");
-        for (int i = 0; i < elements.size(); i++) {
-            Element element = elements.get(i);
-            element.text(placeholder);
-        }
-
-        // Replace all p's with a double placeholder
-        elements = document.getElementsByTag("p");
-        for (int i = 0; i < elements.size(); i++) {
-            Element element = elements.get(i);
-            element.text(element.text() + placeholder + placeholder);
-        }
-
-        // Convert the html document to text and replace all the placeholders with newlines.
-        String textBody = document.text();
-        textBody = textBody.replaceAll(placeholder + " *", "\n");
-        textBody = wrapText(textBody);
+        String textBody = HtmlToText.convert(document);
 
         // Print the text version of the mail in debug mode.
         String debugTextBody = new String(textBody.getBytes("UTF-8"));
@@ -136,29 +210,6 @@ public class Parser {
         return textBody;
     }
 
-    private static String wrapText(String text) {
-        String[] lines = text.split("\n");
-        StringBuilder result = new StringBuilder();
-        for (String line : lines) {
-            if (line.length() <= MAX_LINE_LENGTH) {
-                result.append(line).append("\n");
-            } else {
-                String splitLine = line;
-                while (splitLine.length() > 0) {
-                    int spaceIndex = splitLine.lastIndexOf(" ", MAX_LINE_LENGTH);
-                    if (spaceIndex > 0) {
-                        result.append(splitLine.substring(0, spaceIndex)).append("\n");
-                        splitLine = splitLine.substring(spaceIndex + 1);
-                    } else {
-                        result.append(splitLine).append("\n");
-                        break;
-                    }
-                }
-            }
-        }
-        return result.toString();
-    }
-
     /**
      * Read a plain text file containing one e-mail address per line.
      * 
@@ -170,13 +221,20 @@ public class Parser {
         List<Recipient> recipients = new ArrayList<Recipient>();
         List<String> lines = IOUtils.readLines(filePath, charset);
         for (String line : lines) {
-            String[] split = line.split("\\|", -1);
-            String[] tags = new String[split.length - 1];
-            System.arraycopy(split, 1, tags, 0, tags.length);
-            Recipient recipient = new Recipient(split[0], tags);
-            recipients.add(recipient);
+            recipients.add(parseRecipient(line));
         }
         return recipients;
     }
 
+    /**
+     * @param line a line of the recipients file, without comments: an e-mail address, and optionally some tags separated by |.
+     * @return the recipient on that line.
+     */
+    static Recipient parseRecipient(String line) {
+        String[] split = line.split("\\|", -1);
+        String[] tags = new String[split.length - 1];
+        System.arraycopy(split, 1, tags, 0, tags.length);
+        return new Recipient(split[0], tags);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,238 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server, only reachable from this machine, which shows the progress of the sending as JSON: the counts of mails sent,
+ * failed and remaining, the current rate, the estimated time of the end, and the recent failures.<br/>
+ * 
+ * The server only reads counters which the senders update anyway, and a few volatile fields set by the send loop: it doesn't slow
+ * down the sending. The rate and the estimated end are computed when the progress is requested.
+ */
+class ProgressServer implements HttpHandler {
+    private static final String TAG = ProgressServer.class.getSimpleName();
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    // The current rate is measured over at least this long, if the progress was requested that long ago.
+    private static final long RATE_WINDOW_MS = 10000;
+    // Forget the samples of the rate older than this.
+    private static final long MAX_RATE_WINDOW_MS = 60000;
+
+    private final HttpServer mServer;
+    private final Mail mMail;
+    private final SendOptions mSendOptions;
+    private final Metrics mMetrics;
+    private final AtomicInteger mMailsProcessed;
+    private final long mStartTime = System.currentTimeMillis();
+
+    // Set by the send loop.
+    private volatile int mMailsInBatch;
+    private volatile int mSkippedCount;
+    private volatile long mPauseStartTime;
+    private volatile long mPauseEndTime;
+    // The time spent waiting between batches, before the current pause.
+    private volatile long mPausedMs;
+
+    // The number of mails sent or failed at different times, to measure the current rate. Only used by the server thread.
+    private final LinkedList<long[]> mSamples = new LinkedList<long[]>();
+
+    /**
+     * Start listening on the given port of the loopback interface.
+     * 
+     * @param mailsProcessed the number of recipients we're done with: sent, failed, or skipped.
+     */
+    ProgressServer(int port, Mail mail, SendOptions sendOptions, Metrics metrics, AtomicInteger mailsProcessed) throws IOException {
+        mMail = mail;
+        mSendOptions = sendOptions;
+        mMetrics = metrics;
+        mMailsProcessed = mailsProcessed;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        mServer.createContext("/", this);
+        mServer.start();
+        Log.i(TAG, "Showing the progress on http://127.0.0.1:" + port + "/");
+    }
+
+    /**
+     * Update the number of mails sent in the current batch.
+     */
+    void setMailsInBatch(int mailsInBatch) {
+        mMailsInBatch = mailsInBatch;
+    }
+
+    /**
+     * Update the number of recipients skipped without being counted in the mails processed: the duplicates and the invalid addresses.
+     */
+    void setSkippedCount(int skippedCount) {
+        mSkippedCount = skippedCount;
+    }
+
+    /**
+     * Indicate that we're waiting between two batches, for the given time.
+     */
+    void startPause(long pauseMs) {
+        mPauseStartTime = System.currentTimeMillis();
+        mPauseEndTime = mPauseStartTime + pauseMs;
+    }
+
+    /**
+     * Indicate that we're done waiting between two batches.
+     */
+    void endPause() {
+        mPauseEndTime = 0;
+        mPausedMs += System.currentTimeMillis() - mPauseStartTime;
+    }
+
+    /**
+     * Stop the server.
+     */
+    void stop() {
+        mServer.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] response = getProgress().getBytes(CHARSET);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response);
+            os.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the progress, as JSON.
+     */
+    private String getProgress() {
+        long now = System.currentTimeMillis();
+        long sent = mMetrics.mailsSent.get();
+        long failed = mMetrics.mailsFailed.get();
+        long retried = mMetrics.mailsRetried.get();
+        int processed = mMailsProcessed.get() + mSkippedCount;
+        int total = mMail.recipientCount;
+        int remaining = Math.max(0, total - processed);
+        long pauseEndTime = mPauseEndTime;
+        long pauseRemainingMs = Math.max(0, pauseEndTime - now);
+
+        // The current rate, and the average rate when we're not waiting between batches.
+        double rate = getCurrentRate(now, sent + failed);
+        long pausedMs = mPausedMs + (pauseEndTime > 0 ? now - mPauseStartTime : 0);
+        double sendingSeconds = (now - mStartTime - pausedMs) / 1000.0;
+        double averageRate = sendingSeconds > 0 ? (sent + failed) / sendingSeconds : 0;
+
+        // The time to send the remaining mails, and to wait between the remaining batches.
+        Long etaSeconds = null;
+        double etaRate = rate > 0 ? rate : averageRate;
+        if (remaining == 0) {
+            etaSeconds = 0L;
+        } else if (etaRate > 0) {
+            double seconds = remaining / etaRate + pauseRemainingMs / 1000.0;
+            int batchSize = mSendOptions.maxMailsPerBatch;
+            if (!mSendOptions.dryRun && batchSize > 0) {
+                int leftInBatch = pauseEndTime > 0 ? batchSize : Math.max(0, batchSize - mMailsInBatch);
+                if (remaining > leftInBatch) seconds += ((remaining - leftInBatch + batchSize - 1) / batchSize) * (double) mSendOptions.delayBetweenBatches;
+            }
+            etaSeconds = (long) Math.ceil(seconds);
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        appendField(json, "subject", quote(mMail.headers.subject));
+        appendField(json, "total", total);
+        appendField(json, "processed", processed);
+        appendField(json, "sent", sent);
+        appendField(json, "failed", failed);
+        appendField(json, "retried", retried);
+        appendField(json, "remaining", remaining);
+        appendField(json, "mailsInBatch", mMailsInBatch);
+        appendField(json, "batchSize", mSendOptions.maxMailsPerBatch);
+        appendField(json, "pauseRemainingSeconds", pauseRemainingMs / 1000);
+        appendField(json, "rate", String.format(Locale.US, "%.2f", rate));
+        appendField(json, "averageRate", String.format(Locale.US, "%.2f", averageRate));
+        appendField(json, "etaSeconds", etaSeconds);
+        appendField(json, "eta", etaSeconds == null ? null : quote(formatDate(now + etaSeconds * 1000)));
+        appendField(json, "elapsedSeconds", (now - mStartTime) / 1000);
+        json.append("  \"recentFailures\": [");
+        List<String> recentFailures = mMetrics.getRecentFailures();
+        for (int i = 0; i < recentFailures.size(); i++) {
+            if (i > 0) json.append(',');
+            json.append("\n    ").append(quote(recentFailures.get(i)));
+        }
+        json.append(recentFailures.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * @return the number of mails per second, over the last {@link #RATE_WINDOW_MS} ms or more, or 0 if the progress was never
+     *         requested before.
+     */
+    private synchronized double getCurrentRate(long now, long mailCount) {
+        mSamples.addLast(new long[] { now, mailCount });
+        // Keep the most recent sample which is at least RATE_WINDOW_MS old, and forget the ones which are too old.
+        while (mSamples.size() > 2 && now - mSamples.get(1)[0] >= RATE_WINDOW_MS)
+            mSamples.removeFirst();
+        while (mSamples.size() > 2 && now - mSamples.getFirst()[0] > MAX_RATE_WINDOW_MS)
+            mSamples.removeFirst();
+        long[] oldest = mSamples.getFirst();
+        if (now == oldest[0]) return 0;
+        return (mailCount - oldest[1]) * 1000.0 / (now - oldest[0]);
+    }
+
+    private static void appendField(StringBuilder json, String name, Object value) {
+        json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    /**
+     * @return the given string as a JSON string, with quotes.
+     */
+    private static String quote(String string) {
+        StringBuilder result = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') result.append('\\').append(c);
+            else if (c == '\n') result.append("\\n");
+            else if (c == '\r') result.append("\\r");
+            else if (c == '\t') result.append("\\t");
+            else if (c < ' ') result.append(String.format(Locale.US, "\\u%04x", (int) c));
+            else result.append(c);
+        }
+        return result.append('"').toString();
+    }
+
+    private static String formatDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+}
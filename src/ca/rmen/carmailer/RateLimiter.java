@@ -0,0 +1,96 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket: mails may be sent at a steady rate, with short bursts of up to a given number of mails. It may be shared by several
+ * threads.<br/>
+ * 
+ * A thread which wants to send a mail calls {@link #acquire()}, which takes a token from the bucket, or waits until the bucket has been
+ * refilled enough.
+ */
+class RateLimiter {
+    private final double mTokensPerNano;
+    private final double mBurstSize;
+    private double mTokens;
+    private long mLastRefillTime;
+
+    /**
+     * @param mailsPerSecond the average number of mails we may send per second.
+     * @param burstSize the maximum number of mails we may send at once, after a period without sending.
+     */
+    RateLimiter(double mailsPerSecond, int burstSize) {
+        mTokensPerNano = mailsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        mBurstSize = Math.max(1, burstSize);
+        mTokens = mBurstSize;
+        mLastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * Take one token from the bucket, waiting until one is available if needed.
+     */
+    void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    /**
+     * Take one token from the bucket only if one is available now.
+     * 
+     * @return 0 if we took a token, or how long to wait until a token is available.
+     */
+    synchronized long tryAcquire() {
+        refill();
+        if (mTokens >= 1) {
+            mTokens--;
+            return 0;
+        }
+        return (long) Math.ceil((1 - mTokens) / mTokensPerNano);
+    }
+
+    /**
+     * @return how long until the bucket is full again, if no tokens are taken, or 0 if it's full.
+     */
+    synchronized long getNanosUntilFull() {
+        refill();
+        if (mTokens >= mBurstSize) return 0;
+        return (long) Math.ceil((mBurstSize - mTokens) / mTokensPerNano);
+    }
+
+    /**
+     * Take one token from the bucket, even if it's empty. The bucket may go into debt, which the next threads will have to wait for.
+     * 
+     * @return how long the calling thread must wait before the token it took is really available.
+     */
+    private synchronized long reserve() {
+        refill();
+        mTokens--;
+        if (mTokens >= 0) return 0;
+        return (long) (-mTokens / mTokensPerNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        mTokens = Math.min(mBurstSize, mTokens + (now - mLastRefillTime) * mTokensPerNano);
+        mLastRefillTime = now;
+    }
+
+    @Override
+    public String toString() {
+        return RateLimiter.class.getSimpleName() + " [mailsPerSecond=" + mTokensPerNano * TimeUnit.SECONDS.toNanos(1) + ", burstSize="
+                + mBurstSize + "]";
+    }
+}
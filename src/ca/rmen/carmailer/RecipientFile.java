@@ -0,0 +1,110 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The recipients in a file, read lazily one line at a time as they are iterated, so that the whole list never has to be in memory.<br/>
+ * 
+ * The file has the format described in {@link Parser#parseRecipients(String, Charset)}. The number of recipients is counted once
+ * when the RecipientFile is created, without parsing the recipients. If the charset allows it, the file is read with a
+ * {@link RecipientScanner}.
+ */
+public class RecipientFile implements Iterable<Recipient> {
+    private final File mFile;
+    private final Charset mCharset;
+    private final int mSize;
+
+    /**
+     * @param filePath path to a file containing one line per recipient.
+     * @param charset the character set to use when reading the given file.
+     */
+    public RecipientFile(String filePath, Charset charset) throws IOException {
+        mFile = new File(filePath);
+        mCharset = charset;
+        mSize = IOUtils.countLines(mFile, charset);
+    }
+
+    /**
+     * @return the number of recipients in the file.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return an iterator which reads the file as it goes. The file is closed once all the recipients have been read.
+     * @throws IllegalStateException if the file can't be read. The cause is the {@link IOException}.
+     */
+    @Override
+    public Iterator<Recipient> iterator() {
+        try {
+            if (IOUtils.isAsciiCompatible(mCharset)) return new RecipientScanner(mFile, mCharset);
+            return new RecipientIterator(new BufferedReader(new InputStreamReader(new FileInputStream(mFile), mCharset)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + mFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    private class RecipientIterator implements Iterator<Recipient> {
+        private final BufferedReader mReader;
+        private Recipient mNext;
+        private boolean mEof;
+
+        RecipientIterator(BufferedReader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (mNext == null && !mEof) mNext = readNext();
+            return mNext != null;
+        }
+
+        @Override
+        public Recipient next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Recipient result = mNext;
+            mNext = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Recipient readNext() {
+            try {
+                for (String line = mReader.readLine(); line != null; line = mReader.readLine()) {
+                    line = IOUtils.stripComment(line);
+                    if (!line.isEmpty()) return Parser.parseRecipient(line);
+                }
+                mEof = true;
+                mReader.close();
+                return null;
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read " + mFile + ": " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+/**
+ * Normalizes the addresses of the recipients as they are read, and skips the invalid addresses and the recipients we already
+ * saw.<br/>
+ * 
+ * The addresses are checked with a simple syntax check, much cheaper than {@link javax.mail.internet.InternetAddress#parse(String)}.
+ * To find the duplicates, we only remember a 64-bit hash of each address, in a {@link LongHashSet}: 50 million addresses take about
+ * 550MB. The chance that two different addresses have the same hash, and that one of them is skipped, is below one in 10000 for 50
+ * million addresses.
+ */
+class RecipientFilter implements Iterator<Recipient> {
+    private static final String TAG = RecipientFilter.class.getSimpleName();
+    // The ASCII characters allowed in the local part of an address, unless it's quoted.
+    private static final boolean[] LOCAL_PART_CHARS = new boolean[128];
+    static {
+        for (char c = '!'; c < 127; c++)
+            LOCAL_PART_CHARS[c] = "()<>[]:;,\\\"@".indexOf(c) < 0;
+    }
+
+    private final Iterator<Recipient> mRecipients;
+    private final LongHashSet mFingerprints;
+    private Recipient mNext;
+    private int mDuplicateCount;
+    private int mInvalidCount;
+
+    /**
+     * @param recipients the recipients to filter.
+     * @param expectedCount the number of recipients we expect to read.
+     */
+    RecipientFilter(Iterator<Recipient> recipients, int expectedCount) {
+        mRecipients = recipients;
+        mFingerprints = new LongHashSet(expectedCount);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (mNext == null && mRecipients.hasNext()) {
+            Recipient recipient = mRecipients.next();
+            String address = normalize(recipient.address);
+            if (address == null) {
+                Log.i(TAG, "Skipping " + recipient.address + ": invalid address.");
+                mInvalidCount++;
+            } else if (!mFingerprints.add(fingerprint(getEmailAddress(address)))) {
+                Log.i(TAG, "Skipping " + address + ": duplicate.");
+                mDuplicateCount++;
+            } else {
+                mNext = address.equals(recipient.address) ? recipient : new Recipient(address, recipient.tags);
+            }
+        }
+        return mNext != null;
+    }
+
+    @Override
+    public Recipient next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Recipient result = mNext;
+        mNext = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the number of recipients skipped because we already read their address.
+     */
+    int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * @return the number of recipients skipped because their address is invalid.
+     */
+    int getInvalidCount() {
+        return mInvalidCount;
+    }
+
+    /**
+     * @param address an address like john@doe.com, or John Doe &lt;john@doe.com&gt;
+     * @return the address without the surrounding whitespace, and with the domain in lower case, or null if the address is invalid.
+     */
+    static String normalize(String address) {
+        address = address.trim();
+        // The e-mail address may be after a name, between < and >.
+        int start = 0;
+        int end = address.length();
+        if (address.endsWith(">")) {
+            start = address.lastIndexOf('<') + 1;
+            if (start == 0) return null;
+            end--;
+        }
+        while (start < end && address.charAt(start) == ' ')
+            start++;
+        while (end > start && address.charAt(end - 1) == ' ')
+            end--;
+        int at = address.lastIndexOf('@', end - 1);
+        if (at < start || end - start > 254 || !isValidLocalPart(address, start, at) || !isValidDomain(address, at + 1, end)) return null;
+        // Most addresses are already normalized: don't create any string for them.
+        if (start == 0 && end == address.length() && !hasUpperCase(address, at + 1, end)) return address;
+        String lowerCaseDomain = address.substring(at + 1, end).toLowerCase(Locale.US);
+        StringBuilder result = new StringBuilder(address.length());
+        if (start > 0) result.append(address, 0, address.lastIndexOf('<') + 1);
+        result.append(address, start, at + 1).append(lowerCaseDomain);
+        if (start > 0) result.append('>');
+        return result.toString();
+    }
+
+    /**
+     * @param normalizedAddress an address returned by {@link #normalize(String)}.
+     * @return the e-mail address without the name: john@doe.com for John Doe &lt;john@doe.com&gt;
+     */
+    static String getEmailAddress(String normalizedAddress) {
+        if (!normalizedAddress.endsWith(">")) return normalizedAddress;
+        return normalizedAddress.substring(normalizedAddress.lastIndexOf('<') + 1, normalizedAddress.length() - 1).trim();
+    }
+
+    /**
+     * @return a 64-bit hash of the given e-mail address.
+     */
+    static long fingerprint(String emailAddress) {
+        // FNV-1a on the chars, and the finalizer of MurmurHash3 to spread the bits.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < emailAddress.length(); i++) {
+            hash ^= emailAddress.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static boolean hasUpperCase(String address, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = address.charAt(i);
+            if (c >= 'A' && c <= 'Z' || c >= 0x80 && Character.isUpperCase(c)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isValidLocalPart(String address, int start, int end) {
+        if (end == start || end - start > 64) return false;
+        // "anything" is allowed between quotes.
+        if (end - start >= 2 && address.charAt(start) == '"' && address.charAt(end - 1) == '"') return true;
+        if (address.charAt(start) == '.' || address.charAt(end - 1) == '.') return false;
+        for (int i = start; i < end; i++) {
+            char c = address.charAt(i);
+            if (c < 128 && !LOCAL_PART_CHARS[c]) return false;
+            if (c == '.' && address.charAt(i - 1) == '.') return false;
+        }
+        return true;
+    }
+
+    private static boolean isValidDomain(String address, int start, int end) {
+        if (end == start) return false;
+        // An IP address, like [192.168.1.1]
+        if (address.charAt(start) == '[') return address.charAt(end - 1) == ']';
+        // Labels of 1 to 63 letters, digits or hyphens, separated by dots. Non-ASCII letters are allowed, for internationalized domains.
+        int labelStart = start;
+        for (int i = start; i <= end; i++) {
+            char c = i == end ? '.' : address.charAt(i);
+            if (c == '.') {
+                if (i == labelStart || i - labelStart > 63 || address.charAt(labelStart) == '-' || address.charAt(i - 1) == '-') return false;
+                labelStart = i + 1;
+            } else if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c >= 0x80)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads recipients from a memory-mapped file, looking for line ends, comments, whitespace and | separators directly in the bytes. Only
+ * the address and the tags are decoded: the only objects created for each line are the {@link Recipient}, its strings and its tags
+ * array.<br/>
+ * 
+ * This only works for charsets which encode these separators like ASCII does: see {@link IOUtils#isAsciiCompatible(Charset)}.
+ */
+class RecipientScanner implements Iterator<Recipient> {
+    private static final long MAPPING_SIZE = 64 * 1024 * 1024;
+
+    private final File mFile;
+    private final Charset mCharset;
+    private final FileInputStream mInputStream;
+    private final FileChannel mChannel;
+    private final long mFileSize;
+    private MappedByteBuffer mBuffer;
+    // The position in the file of the start of mBuffer
+    private long mBufferPosition;
+    // The bytes of the current line
+    private byte[] mLine = new byte[1024];
+    private Recipient mNext;
+    private boolean mEof;
+
+    RecipientScanner(File file, Charset charset) throws IOException {
+        mFile = file;
+        mCharset = charset;
+        mInputStream = new FileInputStream(file);
+        mChannel = mInputStream.getChannel();
+        mFileSize = mChannel.size();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext == null && !mEof) {
+            try {
+                mNext = readNext();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read " + mFile + ": " + e.getMessage(), e);
+            }
+        }
+        return mNext != null;
+    }
+
+    @Override
+    public Recipient next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Recipient result = mNext;
+        mNext = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the recipient on the next line which isn't empty or only a comment, or null if we reached the end of the file.
+     */
+    private Recipient readNext() throws IOException {
+        while (true) {
+            int lineLength = readLine();
+            if (lineLength < 0) {
+                mEof = true;
+                mInputStream.close();
+                return null;
+            }
+            Recipient recipient = parseLine(lineLength);
+            if (recipient != null) return recipient;
+        }
+    }
+
+    /**
+     * Copy the next line into mLine.
+     * 
+     * @return the length of the line, without the line end, or -1 if we reached the end of the file.
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        boolean readSomething = false;
+        while (true) {
+            if (mBuffer == null || !mBuffer.hasRemaining()) {
+                if (!mapNextChunk()) return readSomething ? length : -1;
+            }
+            readSomething = true;
+            byte b = mBuffer.get();
+            // Like BufferedReader.readLine(), a line ends with \n, \r, or \r\n. The empty line between \r and \n is ignored.
+            if (b == '\n' || b == '\r') return length;
+            if (length == mLine.length) {
+                byte[] line = new byte[length * 2];
+                System.arraycopy(mLine, 0, line, 0, length);
+                mLine = line;
+            }
+            mLine[length++] = b;
+        }
+    }
+
+    private boolean mapNextChunk() throws IOException {
+        if (mBuffer != null) mBufferPosition += mBuffer.capacity();
+        if (mBufferPosition >= mFileSize) return false;
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, mBufferPosition, Math.min(MAPPING_SIZE, mFileSize - mBufferPosition));
+        return true;
+    }
+
+    /**
+     * @return the recipient in the first length bytes of mLine, or null if the line is empty or only a comment.
+     */
+    private Recipient parseLine(int length) {
+        // Remove the comment
+        int end = 0;
+        int separatorCount = 0;
+        while (end < length && mLine[end] != '#') {
+            if (mLine[end] == '|') separatorCount++;
+            end++;
+        }
+        // Remove the whitespace, like String.trim()
+        int start = 0;
+        while (start < end && (mLine[start] & 0xff) <= ' ')
+            start++;
+        while (end > start && (mLine[end - 1] & 0xff) <= ' ')
+            end--;
+        if (start == end) return null;
+
+        // The address, then the tags.
+        String address = null;
+        String[] tags = new String[separatorCount];
+        int fieldStart = start;
+        int tagIndex = -1;
+        for (int i = start; i <= end; i++) {
+            if (i == end || mLine[i] == '|') {
+                String field = new String(mLine, fieldStart, i - fieldStart, mCharset);
+                if (tagIndex < 0) address = field;
+                else tags[tagIndex] = field;
+                tagIndex++;
+                fieldStart = i + 1;
+            }
+        }
+        return new Recipient(address, tags);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import ca.rmen.carmailer.DomainScheduler.ScheduledRecipient;
+
+/**
+ * The recipients we couldn't send the mail to because of a transient failure, waiting to be sent the mail again.<br/>
+ * 
+ * The delay before each retry doubles after each failure of the same recipient, and is randomized, so that the recipients which failed
+ * together, for example because their server was throttling us, aren't all retried at the same time.
+ */
+class RetryQueue {
+    private static final long MAX_DELAY_MS = 60 * 60 * 1000;
+
+    private final int mMaxRetries;
+    private final long mDelayMs;
+    private final Random mRandom = new Random();
+    private final PriorityQueue<Retry> mRetries = new PriorityQueue<Retry>();
+    // The number of retries of each recipient which failed at least once, by address.
+    private final Map<String, Integer> mRetryCounts = new HashMap<String, Integer>();
+
+    private static class Retry implements Comparable<Retry> {
+        final ScheduledRecipient scheduledRecipient;
+        final SmtpFailure failure;
+        final long time;
+
+        Retry(ScheduledRecipient scheduledRecipient, SmtpFailure failure, long time) {
+            this.scheduledRecipient = scheduledRecipient;
+            this.failure = failure;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Retry other) {
+            return time < other.time ? -1 : time == other.time ? 0 : 1;
+        }
+    }
+
+    /**
+     * @param maxRetries give up on a recipient after retrying this many times.
+     * @param delayMs the delay before the first retry of a recipient, on average.
+     */
+    RetryQueue(int maxRetries, long delayMs) {
+        mMaxRetries = maxRetries;
+        mDelayMs = delayMs;
+    }
+
+    /**
+     * Retry sending the mail to the given recipient later, unless we already retried too many times.
+     * 
+     * @return the delay before the retry in milliseconds, or -1 if we won't retry.
+     */
+    synchronized long add(ScheduledRecipient scheduledRecipient, SmtpFailure failure) {
+        String address = scheduledRecipient.recipient.address;
+        Integer retryCount = mRetryCounts.get(address);
+        int retries = retryCount == null ? 0 : retryCount;
+        if (retries >= mMaxRetries) return -1;
+        mRetryCounts.put(address, retries + 1);
+        // Between half and all of the exponential delay.
+        long delayMs = Math.min(MAX_DELAY_MS, mDelayMs << Math.min(retries, 20));
+        delayMs = delayMs / 2 + (long) (mRandom.nextDouble() * (delayMs / 2));
+        mRetries.add(new Retry(scheduledRecipient, failure, System.currentTimeMillis() + delayMs));
+        notifyAll();
+        return delayMs;
+    }
+
+    /**
+     * Move the recipients whose retry is due to the given scheduler.
+     */
+    synchronized void drainTo(DomainScheduler scheduler) {
+        long now = System.currentTimeMillis();
+        while (!mRetries.isEmpty() && mRetries.peek().time <= now) {
+            ScheduledRecipient scheduledRecipient = mRetries.poll().scheduledRecipient;
+            scheduler.add(scheduledRecipient.recipient, scheduledRecipient.index, scheduledRecipient.canShareMail);
+        }
+    }
+
+    /**
+     * Wait until the next retry is due.
+     */
+    synchronized void awaitNext() throws InterruptedException {
+        while (!mRetries.isEmpty()) {
+            long waitMs = mRetries.peek().time - System.currentTimeMillis();
+            if (waitMs <= 0) return;
+            wait(waitMs);
+        }
+    }
+
+    /**
+     * @return the time until the next retry is due, in nanoseconds, 0 if it's already due, or {@link Long#MAX_VALUE} if no recipient
+     *         is waiting to be retried.
+     */
+    synchronized long getNextDelayNanos() {
+        if (mRetries.isEmpty()) return Long.MAX_VALUE;
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, mRetries.peek().time - System.currentTimeMillis()));
+    }
+
+    /**
+     * @return true if no recipient is waiting to be retried.
+     */
+    synchronized boolean isEmpty() {
+        return mRetries.isEmpty();
+    }
+
+    /**
+     * @return the number of recipients waiting to be retried, by {@link SmtpFailure#getErrorClass()}.
+     */
+    synchronized Map<String, Integer> getPendingRetryCounts() {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        for (Retry retry : mRetries)
+            StatusReporter.increment(result, retry.failure.getErrorClass());
+        return result;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only file with one line for each mail we tried to send: the outcome, a tab, and the address of the recipient. If the mail
+ * was not sent, the line ends with a tab and the SMTP reply code of the failure, if the server gave one.<br/>
+ * 
+ * The journal is synced to disk every few lines, and at least every second, even if no lines are added, so if the program is stopped,
+ * we can read it back and skip the recipients who already received the mail. Like {@link RecipientFilter}, we only remember a 64-bit
+ * hash of the addresses which received the mail, so that resuming a list of millions of recipients takes a few MB instead of hundreds:
+ * if two addresses have the same hash, which is very unlikely, one of them would be skipped.
+ */
+class SendJournal {
+    private static final String TAG = SendJournal.class.getSimpleName();
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final char SEPARATOR = '\t';
+    // Sync the journal to disk after this many lines, or this much time, whichever comes first.
+    private static final int SYNC_LINES = 100;
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    /**
+     * What happened when we tried to send a mail to a recipient.
+     */
+    enum Outcome {
+        SENT,
+        // The mail will be sent again later.
+        RETRY,
+        FAILED
+    };
+
+    private final File mFile;
+    // The fingerprints of the addresses which received the mail.
+    private final LongHashSet mSentAddresses;
+    private final FileOutputStream mOutputStream;
+    private final Writer mWriter;
+    // Syncs the lines which were not synced yet, in case no more lines are added for a while.
+    private final ScheduledExecutorService mSyncer;
+    private int mUnsyncedLines;
+    private long mLastSyncTime;
+
+    /**
+     * Open the journal in the given file, creating it if necessary.
+     * 
+     * @param resume if true, read the existing journal, to know who already received the mail.
+     */
+    SendJournal(File file, boolean resume) throws IOException {
+        mFile = file;
+        boolean load = resume && file.exists();
+        // Guess about 30 bytes per line, so the set rarely needs to grow while loading.
+        mSentAddresses = new LongHashSet(load ? (int) Math.min(Integer.MAX_VALUE, file.length() / 30) : 0);
+        if (load) load();
+        mOutputStream = new FileOutputStream(file, true);
+        mWriter = new BufferedWriter(new OutputStreamWriter(mOutputStream, CHARSET));
+        mLastSyncTime = System.currentTimeMillis();
+        mSyncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-syncer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mSyncer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SendJournal.this) {
+                    if (mUnsyncedLines > 0 && System.currentTimeMillis() - mLastSyncTime >= SYNC_INTERVAL_MS) sync();
+                }
+            }
+        }, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS / 4, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the journal says the mail was already sent to this recipient.
+     */
+    boolean wasSent(Recipient recipient) {
+        return mSentAddresses.contains(RecipientFilter.fingerprint(recipient.address));
+    }
+
+    /**
+     * Add a line to the journal. The line is written to disk at the latest after {@link #SYNC_LINES} lines or
+     * {@link #SYNC_INTERVAL_MS} ms.
+     * 
+     * @param failure why the mail was not sent, or null if it was sent.
+     */
+    synchronized void record(Recipient recipient, Outcome outcome, SmtpFailure failure) {
+        try {
+            mWriter.write(outcome.name());
+            mWriter.write(SEPARATOR);
+            mWriter.write(recipient.address);
+            if (failure != null && failure.code > 0) {
+                mWriter.write(SEPARATOR);
+                mWriter.write(String.valueOf(failure.code));
+            }
+            mWriter.write('\n');
+            mUnsyncedLines++;
+            if (mUnsyncedLines >= SYNC_LINES || System.currentTimeMillis() - mLastSyncTime >= SYNC_INTERVAL_MS) writeToDisk();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write to the journal " + mFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write all the lines added so far to disk now.
+     */
+    synchronized void sync() {
+        try {
+            writeToDisk();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not sync the journal " + mFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write everything to disk, and close the journal.
+     */
+    synchronized void close() {
+        mSyncer.shutdown();
+        try {
+            writeToDisk();
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close the journal " + mFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void writeToDisk() throws IOException {
+        mWriter.flush();
+        mOutputStream.getChannel().force(false);
+        mUnsyncedLines = 0;
+        mLastSyncTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Read the addresses of the recipients who received the mail. The last line may be incomplete if we crashed while writing it: we
+     * ignore lines we don't understand.
+     */
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), CHARSET));
+        try {
+            String sent = Outcome.SENT.name() + SEPARATOR;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(sent)) mSentAddresses.add(RecipientFilter.fingerprint(line.substring(sent.length())));
+            }
+        } finally {
+            reader.close();
+        }
+        Log.i(TAG, "Read " + mSentAddresses.size() + " recipients who already received the mail from " + mFile);
+    }
+}
@@ -14,40 +14,325 @@
 package ca.rmen.carmailer;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Parameters to determine how we will send the mail
+ * Parameters to determine how we will send the mail. They are set with a {@link Builder}.
  */
 public class SendOptions {
 
+    /**
+     * How the mails are saved in the output folder.
+     */
+    public static enum OutputFormat {
+        // One eml file per mail, in hashed subfolders.
+        EML,
+        // One mbox file for all the mails, with an index.
+        MBOX,
+        // One file for all the mails, each one compressed separately, with an index.
+        DEFLATE
+    };
+
     final boolean dryRun;
     final File outputFolder;
+    final OutputFormat outputFormat;
     final String statusEmailAddress;
     // To avoid being detected as spam, don't send too many mails too quickly:
     // Send mail in batches: Send at most maxMailsPerBatch consecutive mails, and sleep 
     // delayBetweenBatches seconds between batches.
     final int maxMailsPerBatch;
     final int delayBetweenBatches;
+    // Within a batch, smooth the sending rate: send at most maxMailsPerSecond on average, with bursts of at most burstSize mails.
+    final double maxMailsPerSecond;
+    final int burstSize;
+    // Limits for each domain of the recipients: the maximum number of mails per second, and the maximum number of mails in progress.
+    final Map<String, Double> domainMailsPerSecond;
+    final Map<String, Integer> domainConnections;
+    // Reuse the same SMTP connection for several mails, to avoid connecting and authenticating for each mail.
+    final int maxMailsPerConnection;
+    // If the mail has no tags, send one mail to up to this many recipients of the same domain, in one SMTP transaction.
+    final int maxRecipientsPerMail;
+    // Send this many mails at the same time, each one over its own SMTP connection.
+    final int connections;
+    // Send each mail on its own virtual thread, instead of using one platform thread per connection.
+    final boolean virtualThreads;
+    // Build the mails on this many threads, while other threads send them.
+    final int builderThreads;
+    // Record the outcome of each mail in this file, and optionally skip the recipients it says already received the mail.
+    final File journalFile;
+    final boolean resume;
+    // Write the metrics to this file, in the Prometheus text format, every metricsInterval seconds.
+    final File metricsFile;
+    final int metricsInterval;
+    // After a transient failure, send the mail again up to maxRetries times, waiting retryDelay seconds the first time, twice as long the second time, and so on.
+    final int maxRetries;
+    final int retryDelay;
+    // Never send the mail to the addresses in this file.
+    final File suppressionFile;
+    // Show the progress as JSON on this port of the loopback interface.
+    final int httpPort;
+
+    private SendOptions(Builder builder) {
+        this.dryRun = builder.mDryRun;
+        this.outputFolder = builder.mOutputFolder;
+        this.outputFormat = builder.mOutputFormat;
+        this.statusEmailAddress = builder.mStatusEmailAddress;
+        this.maxMailsPerBatch = builder.mMaxMailsPerBatch;
+        this.delayBetweenBatches = builder.mDelayBetweenBatches;
+        this.maxMailsPerSecond = builder.mMaxMailsPerSecond;
+        this.burstSize = builder.mBurstSize;
+        this.domainMailsPerSecond = new HashMap<String, Double>(builder.mDomainMailsPerSecond);
+        this.domainConnections = new HashMap<String, Integer>(builder.mDomainConnections);
+        this.maxMailsPerConnection = builder.mMaxMailsPerConnection;
+        this.maxRecipientsPerMail = builder.mMaxRecipientsPerMail;
+        this.connections = builder.mConnections;
+        this.virtualThreads = builder.mVirtualThreads;
+        this.builderThreads = builder.mBuilderThreads;
+        this.journalFile = builder.mJournalFile;
+        this.resume = builder.mResume;
+        this.metricsFile = builder.mMetricsFile;
+        this.metricsInterval = builder.mMetricsInterval;
+        this.maxRetries = builder.mMaxRetries;
+        this.retryDelay = builder.mRetryDelay;
+        this.suppressionFile = builder.mSuppressionFile;
+        this.httpPort = builder.mHttpPort;
+    }
 
     /**
-     * @param dryRun if true, no mail will actually be sent.
-     * @param outputFolder if not-null, an eml file will be created in this folder for each mail to be sent.
-     * @param statusEmailAddress if not null, a mail will be sent after each batch, and after sending all mails, to this e-mail address.
-     * @param maxMailsPerBatch sent at most this many mails in one batch.
-     * @param delayBetweenBatches wait this many seconds between batches.
+     * Creates the SendOptions. Each option which isn't set keeps its default value, which is the default of the command-line
+     * option.
      */
-    public SendOptions(boolean dryRun, File outputFolder, String statusEmailAddress, int maxMailsPerBatch, int delayBetweenBatches) {
-        this.dryRun = dryRun;
-        this.outputFolder = outputFolder;
-        this.statusEmailAddress = statusEmailAddress;
-        this.maxMailsPerBatch = maxMailsPerBatch;
-        this.delayBetweenBatches = delayBetweenBatches;
+    public static class Builder {
+        private boolean mDryRun;
+        private File mOutputFolder;
+        private OutputFormat mOutputFormat = OutputFormat.EML;
+        private String mStatusEmailAddress;
+        private int mMaxMailsPerBatch = 100;
+        private int mDelayBetweenBatches = 60 * 60;
+        private double mMaxMailsPerSecond;
+        private int mBurstSize = 1;
+        private final Map<String, Double> mDomainMailsPerSecond = new HashMap<String, Double>();
+        private final Map<String, Integer> mDomainConnections = new HashMap<String, Integer>();
+        private int mMaxMailsPerConnection;
+        private int mMaxRecipientsPerMail = 1;
+        private int mConnections = 1;
+        private boolean mVirtualThreads;
+        private int mBuilderThreads = Runtime.getRuntime().availableProcessors();
+        private File mJournalFile;
+        private boolean mResume;
+        private File mMetricsFile;
+        private int mMetricsInterval = 10;
+        private int mMaxRetries = 5;
+        private int mRetryDelay = 60;
+        private File mSuppressionFile;
+        private int mHttpPort;
+
+        /**
+         * @param dryRun if true, no mail will actually be sent.
+         */
+        public Builder dryRun(boolean dryRun) {
+            mDryRun = dryRun;
+            return this;
+        }
+
+        /**
+         * @param outputFolder if not-null, each mail to be sent will be saved in this folder.
+         */
+        public Builder outputFolder(File outputFolder) {
+            mOutputFolder = outputFolder;
+            return this;
+        }
+
+        /**
+         * @param outputFormat how the mails are saved in the outputFolder.
+         */
+        public Builder outputFormat(OutputFormat outputFormat) {
+            mOutputFormat = outputFormat;
+            return this;
+        }
+
+        /**
+         * @param statusEmailAddress if not null, a mail will be sent after each batch, and after sending all mails, to this
+         *            e-mail address.
+         */
+        public Builder statusEmailAddress(String statusEmailAddress) {
+            mStatusEmailAddress = statusEmailAddress;
+            return this;
+        }
+
+        /**
+         * @param maxMailsPerBatch sent at most this many mails in one batch.
+         */
+        public Builder maxMailsPerBatch(int maxMailsPerBatch) {
+            mMaxMailsPerBatch = maxMailsPerBatch;
+            return this;
+        }
+
+        /**
+         * @param delayBetweenBatches wait this many seconds between batches.
+         */
+        public Builder delayBetweenBatches(int delayBetweenBatches) {
+            mDelayBetweenBatches = delayBetweenBatches;
+            return this;
+        }
+
+        /**
+         * @param maxMailsPerSecond send at most this many mails per second, on average. If 0, there is no limit.
+         */
+        public Builder maxMailsPerSecond(double maxMailsPerSecond) {
+            mMaxMailsPerSecond = maxMailsPerSecond;
+            return this;
+        }
+
+        /**
+         * @param burstSize when sending at most maxMailsPerSecond, we may send up to this many mails at once.
+         */
+        public Builder burstSize(int burstSize) {
+            mBurstSize = burstSize;
+            return this;
+        }
+
+        /**
+         * @param domain a domain of the recipients, or "*" for each domain without its own limit.
+         * @param mailsPerSecond send at most this many mails per second to the recipients of that domain.
+         */
+        public Builder domainMailsPerSecond(String domain, double mailsPerSecond) {
+            mDomainMailsPerSecond.put(domain, mailsPerSecond);
+            return this;
+        }
+
+        /**
+         * @param domain a domain of the recipients, or "*" for each domain without its own limit.
+         * @param connections send at most this many mails at the same time to the recipients of that domain.
+         */
+        public Builder domainConnections(String domain, int connections) {
+            mDomainConnections.put(domain, connections);
+            return this;
+        }
+
+        /**
+         * @param maxMailsPerConnection send at most this many mails over one SMTP connection. If 0, one connection is used for
+         *            each whole batch.
+         */
+        public Builder maxMailsPerConnection(int maxMailsPerConnection) {
+            mMaxMailsPerConnection = maxMailsPerConnection;
+            return this;
+        }
+
+        /**
+         * @param maxRecipientsPerMail if the mail has no tags, recipients of the same domain may be sent the same mail, up to
+         *            this many at once. The To: header will then be "undisclosed-recipients". If 1, each recipient gets its own mail.
+         */
+        public Builder maxRecipientsPerMail(int maxRecipientsPerMail) {
+            mMaxRecipientsPerMail = maxRecipientsPerMail;
+            return this;
+        }
+
+        /**
+         * @param connections the number of SMTP connections used to send mails in parallel.
+         */
+        public Builder connections(int connections) {
+            mConnections = connections;
+            return this;
+        }
+
+        /**
+         * @param virtualThreads if true, and if the JVM supports it, each mail will be sent on its own virtual thread.
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            mVirtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * @param builderThreads the number of threads used to build the mails, while others send them.
+         */
+        public Builder builderThreads(int builderThreads) {
+            mBuilderThreads = builderThreads;
+            return this;
+        }
+
+        /**
+         * @param journalFile if not null, the outcome of each mail will be appended to this file.
+         */
+        public Builder journalFile(File journalFile) {
+            mJournalFile = journalFile;
+            return this;
+        }
+
+        /**
+         * @param resume if true, the recipients which the journalFile says already received the mail will be skipped.
+         */
+        public Builder resume(boolean resume) {
+            mResume = resume;
+            return this;
+        }
+
+        /**
+         * @param metricsFile if not null, the metrics will be written to this file, in the Prometheus text format.
+         */
+        public Builder metricsFile(File metricsFile) {
+            mMetricsFile = metricsFile;
+            return this;
+        }
+
+        /**
+         * @param metricsInterval write the metricsFile every this many seconds.
+         */
+        public Builder metricsInterval(int metricsInterval) {
+            mMetricsInterval = metricsInterval;
+            return this;
+        }
+
+        /**
+         * @param maxRetries after a transient failure (a 4xx reply or a lost connection), send the mail again up to this many
+         *            times.
+         */
+        public Builder maxRetries(int maxRetries) {
+            mMaxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * @param retryDelay wait about this many seconds before the first retry. The delay doubles after each retry.
+         */
+        public Builder retryDelay(int retryDelay) {
+            mRetryDelay = retryDelay;
+            return this;
+        }
+
+        /**
+         * @param suppressionFile if not null, the recipients whose address is in this file will be skipped. The file has the
+         *            same format as the recipients file.
+         */
+        public Builder suppressionFile(File suppressionFile) {
+            mSuppressionFile = suppressionFile;
+            return this;
+        }
+
+        /**
+         * @param httpPort if not 0, the progress can be read as JSON at http://127.0.0.1:httpPort/
+         */
+        public Builder httpPort(int httpPort) {
+            mHttpPort = httpPort;
+            return this;
+        }
+
+        public SendOptions build() {
+            return new SendOptions(this);
+        }
     }
 
     @Override
     public String toString() {
-        return SendOptions.class.getSimpleName() + " [dryRun=" + dryRun + ", outputFolder=" + outputFolder + ", statusEmailAddress=" + statusEmailAddress
-                + ", maxMailsPerBatch=" + maxMailsPerBatch + ", delayBetweenBatches=" + delayBetweenBatches + "]";
+        return SendOptions.class.getSimpleName() + " [dryRun=" + dryRun + ", outputFolder=" + outputFolder + ", outputFormat=" + outputFormat
+                + ", statusEmailAddress=" + statusEmailAddress + ", maxMailsPerBatch=" + maxMailsPerBatch + ", delayBetweenBatches="
+                + delayBetweenBatches + ", maxMailsPerSecond=" + maxMailsPerSecond + ", burstSize=" + burstSize + ", domainMailsPerSecond=" + domainMailsPerSecond + ", domainConnections="
+                + domainConnections + ", maxMailsPerConnection=" + maxMailsPerConnection + ", maxRecipientsPerMail=" + maxRecipientsPerMail
+                + ", connections=" + connections + ", virtualThreads=" + virtualThreads + ", builderThreads=" + builderThreads + ", journalFile="
+                + journalFile + ", resume=" + resume + ", metricsFile=" + metricsFile + ", metricsInterval=" + metricsInterval
+                + ", maxRetries=" + maxRetries + ", retryDelay=" + retryDelay + ", suppressionFile=" + suppressionFile + ", httpPort=" + httpPort + "]";
     }
 
 }
\ No newline at end of file
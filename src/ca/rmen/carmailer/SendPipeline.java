@@ -0,0 +1,437 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import ca.rmen.carmailer.DomainScheduler.ScheduledRecipient;
+
+/**
+ * Sends the mails in stages, each stage having its own threads, so that building the mails (which uses the CPU) overlaps with sending
+ * them (which waits on the network):
+ * <ol>
+ * <li>{@link #submit(List)}: the caller hands over the recipients of a mail.</li>
+ * <li>A pool of builder threads creates the mail, and gives a copy of it to the archive if needed.</li>
+ * <li>The mail waits in a bounded queue. If the senders fall behind, the builders wait for room in the queue.</li>
+ * <li>One sender thread per SMTP connection sends the mails from the queue. With virtual threads, a dispatcher starts one virtual thread
+ * per mail instead, with at most one mail per SMTP connection being sent at a time.</li>
+ * <li>One recorder thread records the outcome of each mail: in the journal, in the status reporter, and in the progress. The
+ * recipients who had a transient failure go to the retry queue instead.</li>
+ * </ol>
+ * There are never more than a fixed number of mails in the pipeline: if it's full, {@link #submit(List)} waits.
+ */
+class SendPipeline {
+    private static final String TAG = SendPipeline.class.getSimpleName();
+
+    // Tells the senders and the recorder to stop.
+    private static final Envelope STOP = new Envelope(Collections.<ScheduledRecipient> emptyList());
+
+    final AtomicInteger mailsProcessed = new AtomicInteger();
+    final SmtpConnectionPool connectionPool;
+
+    private final Session mMailSession;
+    private final Mail mMail;
+    private final MessageSkeleton mSkeleton;
+    private final SendOptions mSendOptions;
+    private final DomainScheduler mScheduler;
+    private final SendJournal mJournal;
+    private final MessageArchive mArchive;
+    private final RetryQueue mRetryQueue;
+    private final StatusReporter mReporter;
+    private final RateLimiter mRateLimiter;
+    private final Metrics mMetrics;
+
+    private final ExecutorService mBuilders;
+    private final ExecutorService mSenders;
+    // The number of threads taking mails from the send queue.
+    private final int mSendQueueConsumers;
+    // If the mails are sent on virtual threads: one permit per mail which may be sent at the same time.
+    private final Semaphore mSendSlots;
+    private final Thread mRecorder;
+    private final BlockingQueue<Envelope> mSendQueue;
+    private final BlockingQueue<Envelope> mRecordQueue = new LinkedBlockingQueue<Envelope>();
+    private final Semaphore mMailsInProgress;
+    private final int mMaxMailsInProgress;
+
+    /**
+     * A mail going through the pipeline.
+     */
+    private static class Envelope {
+        final List<ScheduledRecipient> scheduledRecipients;
+        Message message;
+        // If not null, the addresses to send the message to, instead of the recipients of the message.
+        Address[] addresses;
+        // The recipients we couldn't send the mail to, and why.
+        final Map<Recipient, Exception> failures = new LinkedHashMap<Recipient, Exception>();
+
+        Envelope(List<ScheduledRecipient> scheduledRecipients) {
+            this.scheduledRecipients = scheduledRecipients;
+        }
+
+        void fail(Exception e) {
+            for (ScheduledRecipient scheduledRecipient : scheduledRecipients)
+                failures.put(scheduledRecipient.recipient, e);
+        }
+    }
+
+    /**
+     * @param skeleton if not null, the mails to the recipients which can share a mail will be created from this skeleton.
+     * @param scheduler the scheduler which gave us the recipients. We tell it when each mail is done.
+     * @param journal if not null, the outcome of each mail is recorded here.
+     * @param archive if not null, each mail is saved here.
+     * @param retryQueue the recipients who had a transient failure are added here.
+     * @param reporter if not null, the recipients we gave up on are added here.
+     * @param metrics updated as the mails go through the pipeline.
+     */
+    SendPipeline(Session mailSession, Mail mail, MessageSkeleton skeleton, SendOptions sendOptions, final DomainScheduler scheduler,
+            SendJournal journal, MessageArchive archive, RetryQueue retryQueue, StatusReporter reporter,
+            Metrics metrics) {
+        mMailSession = mailSession;
+        mMail = mail;
+        mSkeleton = skeleton;
+        mSendOptions = sendOptions;
+        mScheduler = scheduler;
+        mJournal = journal;
+        mArchive = archive;
+        mRetryQueue = retryQueue;
+        mReporter = reporter;
+        mMetrics = metrics;
+        connectionPool = new SmtpConnectionPool(mailSession, sendOptions.connections, sendOptions.maxMailsPerConnection, metrics);
+        mRateLimiter = sendOptions.maxMailsPerSecond > 0 ? new RateLimiter(sendOptions.maxMailsPerSecond, sendOptions.burstSize) : null;
+
+        // Keep the senders busy: allow a couple of mails per connection to wait in the queue.
+        mSendQueue = new ArrayBlockingQueue<Envelope>(2 * sendOptions.connections);
+        mMaxMailsInProgress = sendOptions.builderThreads + mSendQueue.remainingCapacity() + sendOptions.connections;
+        mMailsInProgress = new Semaphore(mMaxMailsInProgress);
+        metrics.add(new Metrics.Gauge("queued_recipients", "Recipients read ahead, waiting to be submitted.") {
+            @Override
+            long get() {
+                return scheduler.size();
+            }
+        });
+        metrics.add(new Metrics.Gauge("mails_in_progress", "Mails being built, sent, or recorded.") {
+            @Override
+            long get() {
+                return mMaxMailsInProgress - mMailsInProgress.availablePermits();
+            }
+        });
+        metrics.add(new Metrics.Gauge("send_queue_size", "Mails built, waiting for a connection.") {
+            @Override
+            long get() {
+                return mSendQueue.size();
+            }
+        });
+
+        mBuilders = Executors.newFixedThreadPool(sendOptions.builderThreads);
+        ExecutorService virtualThreads = sendOptions.virtualThreads ? createVirtualThreadExecutor() : null;
+        if (virtualThreads != null) {
+            mSenders = virtualThreads;
+            mSendSlots = new Semaphore(sendOptions.connections);
+            mSendQueueConsumers = 1;
+            mSenders.execute(new Dispatcher());
+        } else {
+            mSenders = Executors.newFixedThreadPool(sendOptions.connections);
+            mSendSlots = null;
+            mSendQueueConsumers = sendOptions.connections;
+            for (int i = 0; i < mSendQueueConsumers; i++)
+                mSenders.execute(new Sender());
+        }
+        mRecorder = new Thread(new Recorder(), TAG + "-recorder");
+        mRecorder.start();
+    }
+
+    /**
+     * Send one mail to the given recipients. This returns as soon as there is room in the pipeline for the mail.
+     */
+    void submit(List<ScheduledRecipient> scheduledRecipients) throws InterruptedException {
+        mMailsInProgress.acquire();
+        mBuilders.execute(new Builder(new Envelope(scheduledRecipients)));
+    }
+
+    /**
+     * Wait until all the mails submitted so far are sent and recorded.
+     */
+    void awaitIdle() throws InterruptedException {
+        mMailsInProgress.acquire(mMaxMailsInProgress);
+        mMailsInProgress.release(mMaxMailsInProgress);
+    }
+
+    /**
+     * Wait for all the mails to be sent, then stop all the threads, and close the connections.
+     */
+    void close() throws InterruptedException {
+        awaitIdle();
+        mBuilders.shutdown();
+        for (int i = 0; i < mSendQueueConsumers; i++)
+            mSendQueue.put(STOP);
+        mSenders.shutdown();
+        mSenders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        mRecordQueue.put(STOP);
+        mRecorder.join();
+        connectionPool.closeAll();
+    }
+
+    /**
+     * Stop everything now, without waiting for the mails in progress.
+     */
+    void abort() {
+        mBuilders.shutdownNow();
+        mSenders.shutdownNow();
+        mRecorder.interrupt();
+        connectionPool.closeAll();
+    }
+
+    /**
+     * @return an executor which runs each task on a new virtual thread, or null if the JVM doesn't support virtual threads.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        // Virtual threads only exist in Java 21 and later: look them up by reflection so that we still run on older JVMs.
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            Log.i(TAG, "Virtual threads are not supported by this JVM, using a thread per connection instead");
+            return null;
+        }
+    }
+
+    /**
+     * Creates the mail for one envelope, archives it if needed, and gives it to the senders.
+     */
+    private class Builder implements Runnable {
+        private final Envelope mEnvelope;
+
+        Builder(Envelope envelope) {
+            mEnvelope = envelope;
+        }
+
+        @Override
+        public void run() {
+            List<ScheduledRecipient> scheduledRecipients = mEnvelope.scheduledRecipients;
+            long start = System.nanoTime();
+            try {
+                if (scheduledRecipients.size() == 1) {
+                    ScheduledRecipient scheduledRecipient = scheduledRecipients.get(0);
+                    Recipient recipient = scheduledRecipient.recipient;
+                    Log.i(TAG, "Sending to " + scheduledRecipient.index + ": " + recipient.address + ".");
+                    if (scheduledRecipient.canShareMail) mEnvelope.message = mSkeleton.createMessage(mMailSession, recipient);
+                    else mEnvelope.message = CarMailer.createMessage(mMailSession, recipient, mMail.headers, mMail.body);
+                } else {
+                    // One untagged mail for all the recipients
+                    Log.i(TAG, "Sending to " + scheduledRecipients.get(0).index + "-" + scheduledRecipients.get(scheduledRecipients.size() - 1).index
+                            + ": " + scheduledRecipients.size() + " recipients of "
+                            + DomainScheduler.getDomain(scheduledRecipients.get(0).recipient.address) + ".");
+                    mEnvelope.message = mSkeleton.createMessage(mMailSession);
+                    List<Address> addresses = new ArrayList<Address>();
+                    for (ScheduledRecipient scheduledRecipient : scheduledRecipients)
+                        addresses.addAll(Arrays.asList(InternetAddress.parse(scheduledRecipient.recipient.address)));
+                    mEnvelope.addresses = addresses.toArray(new Address[addresses.size()]);
+                }
+            } catch (Exception e) {
+                mEnvelope.fail(e);
+            }
+            // The archive is only a copy: if we can't save the mail, we still send it.
+            if (mArchive != null && mEnvelope.failures.isEmpty()) {
+                try {
+                    byte[] bytes = MessageArchive.toBytes(mEnvelope.message);
+                    for (ScheduledRecipient scheduledRecipient : scheduledRecipients)
+                        mArchive.add(scheduledRecipient.recipient, bytes);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted while archiving the mail for " + scheduledRecipients.get(0).recipient, e);
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    Log.e(TAG, "Could not archive the mail for " + scheduledRecipients.get(0).recipient + ": " + e.getMessage(), e);
+                }
+            }
+            mMetrics.build.record(start);
+            try {
+                // The mail goes straight to the recorder if there's nothing to send.
+                if (mSendOptions.dryRun || !mEnvelope.failures.isEmpty()) mRecordQueue.put(mEnvelope);
+                else mSendQueue.put(mEnvelope);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while building the mail for " + scheduledRecipients.get(0).recipient, e);
+            }
+        }
+    }
+
+    /**
+     * Sends the mails from the send queue, one at a time, until it gets the STOP envelope.
+     */
+    private class Sender implements Runnable {
+        @Override
+        public void run() {
+            try {
+                for (Envelope envelope = mSendQueue.take(); envelope != STOP; envelope = mSendQueue.take()) {
+                    send(envelope);
+                    mRecordQueue.put(envelope);
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Sender interrupted");
+            }
+        }
+    }
+
+    /**
+     * Starts a virtual thread for each mail from the send queue, when there is a free send slot, until it gets the STOP envelope.
+     */
+    private class Dispatcher implements Runnable {
+        @Override
+        public void run() {
+            try {
+                for (Envelope envelope = mSendQueue.take(); envelope != STOP; envelope = mSendQueue.take()) {
+                    mSendSlots.acquire();
+                    mSenders.execute(new SendTask(envelope));
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Dispatcher interrupted");
+            } catch (RejectedExecutionException e) {
+                Log.d(TAG, "Dispatcher stopped");
+            }
+        }
+    }
+
+    /**
+     * Sends one mail, on its own virtual thread.
+     */
+    private class SendTask implements Runnable {
+        private final Envelope mEnvelope;
+
+        SendTask(Envelope envelope) {
+            mEnvelope = envelope;
+        }
+
+        @Override
+        public void run() {
+            try {
+                send(mEnvelope);
+                mRecordQueue.put(mEnvelope);
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Sender interrupted");
+            } finally {
+                mSendSlots.release();
+            }
+        }
+    }
+
+    /**
+     * Send the mail of the given envelope, and note the recipients we couldn't send it to.
+     */
+    private void send(Envelope envelope) throws InterruptedException {
+        List<ScheduledRecipient> scheduledRecipients = envelope.scheduledRecipients;
+        for (int i = 0; mRateLimiter != null && i < scheduledRecipients.size(); i++)
+            mRateLimiter.acquire();
+        SmtpConnection connection = connectionPool.take();
+        long start = System.nanoTime();
+        try {
+            if (envelope.addresses == null) connection.send(envelope.message);
+            else connection.send(envelope.message, envelope.addresses);
+        } catch (SendFailedException e) {
+            // If we sent one mail to several recipients, some of them may have been refused, and the others got the mail.
+            Set<Address> failedAddresses = new HashSet<Address>();
+            if (e.getInvalidAddresses() != null) failedAddresses.addAll(Arrays.asList(e.getInvalidAddresses()));
+            if (e.getValidUnsentAddresses() != null) failedAddresses.addAll(Arrays.asList(e.getValidUnsentAddresses()));
+            // If the server didn't tell us who was refused, they all failed.
+            if (envelope.addresses == null || failedAddresses.isEmpty()) {
+                envelope.fail(e);
+            } else {
+                for (ScheduledRecipient scheduledRecipient : scheduledRecipients) {
+                    try {
+                        if (failedAddresses.removeAll(Arrays.asList(InternetAddress.parse(scheduledRecipient.recipient.address))))
+                            envelope.failures.put(scheduledRecipient.recipient, e);
+                    } catch (MessagingException e2) {
+                        envelope.failures.put(scheduledRecipient.recipient, e2);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            envelope.fail(e);
+        } finally {
+            // Failures count too: slow failures and timeouts are the ones we most need to see.
+            mMetrics.send.record(start);
+            connectionPool.give(connection);
+        }
+    }
+
+    /**
+     * Records the outcome of each mail, until it gets the STOP envelope.
+     */
+    private class Recorder implements Runnable {
+        @Override
+        public void run() {
+            try {
+                for (Envelope envelope = mRecordQueue.take(); envelope != STOP; envelope = mRecordQueue.take())
+                    record(envelope);
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Recorder interrupted");
+            }
+        }
+
+        private void record(Envelope envelope) {
+            int recipientsProcessed = 0;
+            for (ScheduledRecipient scheduledRecipient : envelope.scheduledRecipients) {
+                Recipient recipient = scheduledRecipient.recipient;
+                Exception e = envelope.failures.get(recipient);
+                if (e == null) {
+                    if (!mSendOptions.dryRun) mMetrics.mailsSent.increment();
+                    if (mJournal != null) mJournal.record(recipient, SendJournal.Outcome.SENT, null);
+                    recipientsProcessed++;
+                    continue;
+                }
+                SmtpFailure failure = SmtpFailure.get(e, recipient.address);
+                long retryDelayMs = failure.isTransient ? mRetryQueue.add(scheduledRecipient, failure) : -1;
+                if (retryDelayMs >= 0) {
+                    Log.i(TAG, "Could not send mail to " + recipient + ", trying again in " + retryDelayMs + "ms: " + failure);
+                    mMetrics.mailsRetried.increment();
+                    mMetrics.addRecentFailure(recipient.address + ": " + failure);
+                    if (mJournal != null) mJournal.record(recipient, SendJournal.Outcome.RETRY, failure);
+                } else {
+                    Log.e(TAG, "Could not send mail to " + recipient + ": " + failure, e);
+                    e.printStackTrace(); // Why doesn't this show up in the logs?
+                    if (mReporter != null) mReporter.onFailure(recipient, failure);
+                    mMetrics.mailsFailed.increment();
+                    mMetrics.addRecentFailure(recipient.address + ": " + failure);
+                    if (mJournal != null) mJournal.record(recipient, SendJournal.Outcome.FAILED, failure);
+                    recipientsProcessed++;
+                }
+            }
+            mailsProcessed.addAndGet(recipientsProcessed);
+            mScheduler.done(envelope.scheduledRecipients);
+            mMailsInProgress.release();
+        }
+    }
+}
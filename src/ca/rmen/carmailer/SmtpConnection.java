@@ -0,0 +1,120 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * An SMTP connection which stays open across several messages, so that we only pay for the connection, STARTTLS and authentication
+ * once, instead of once per message.<br/>
+ * 
+ * The connection is opened lazily on the first message, closed after a given number of messages, and reopened transparently if the
+ * server dropped it in the meantime.
+ */
+class SmtpConnection {
+    private static final String TAG = SmtpConnection.class.getSimpleName();
+
+    private final Session mMailSession;
+    private final int mMaxMailsPerConnection;
+    private final Metrics mMetrics;
+    private Transport mTransport;
+    private int mMailsSent;
+
+    /**
+     * @param mailSession the session used to create the transport.
+     * @param maxMailsPerConnection close the connection after sending this many mails. If 0, the connection stays open until
+     *            {@link #close()} is called.
+     * @param metrics updated with the time spent logging in and the number of open connections.
+     */
+    SmtpConnection(Session mailSession, int maxMailsPerConnection, Metrics metrics) {
+        mMailSession = mailSession;
+        mMaxMailsPerConnection = maxMailsPerConnection;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Send the given message to all of its recipients, connecting first if needed. If the server closed the connection (for example
+     * because it was idle for too long), we reconnect and try once more.
+     * 
+     * @throws MessagingException if the mail could not be sent.
+     */
+    void send(Message message) throws MessagingException {
+        send(message, message.getAllRecipients());
+    }
+
+    /**
+     * Send the given message to the given addresses, in one SMTP transaction, regardless of the recipient headers of the message.
+     * 
+     * @see #send(Message)
+     */
+    void send(Message message, Address[] addresses) throws MessagingException {
+        connect();
+        try {
+            mTransport.sendMessage(message, addresses);
+        } catch (SendFailedException e) {
+            // The server refused this message, but the connection is still good.
+            throw e;
+        } catch (MessagingException e) {
+            reconnect(e);
+            mTransport.sendMessage(message, addresses);
+        } catch (IllegalStateException e) {
+            reconnect(e);
+            mTransport.sendMessage(message, addresses);
+        }
+        mMailsSent++;
+        if (mMaxMailsPerConnection > 0 && mMailsSent >= mMaxMailsPerConnection) close();
+    }
+
+    /**
+     * Close the connection to the server, if it is open. The next call to {@link #send(Message)} will open a new connection.
+     */
+    void close() {
+        if (mTransport == null) return;
+        try {
+            mTransport.close();
+        } catch (MessagingException e) {
+            Log.d(TAG, "Error closing the connection: " + e.getMessage());
+        }
+        mTransport = null;
+        mMailsSent = 0;
+        mMetrics.activeConnections.decrement();
+    }
+
+    private void connect() throws MessagingException {
+        if (mTransport != null) return;
+        Log.d(TAG, "Connecting");
+        mTransport = mMailSession.getTransport();
+        long start = System.nanoTime();
+        try {
+            mTransport.connect();
+            mMetrics.login.record(start);
+            mMetrics.activeConnections.increment();
+        } catch (MessagingException e) {
+            mTransport = null;
+            throw e;
+        }
+    }
+
+    private void reconnect(Exception cause) throws MessagingException {
+        Log.d(TAG, "Lost the connection (" + cause.getMessage() + "), reconnecting");
+        close();
+        connect();
+        mMetrics.smtpReconnects.increment();
+    }
+}
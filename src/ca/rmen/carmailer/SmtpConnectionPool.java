@@ -0,0 +1,67 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.mail.Session;
+
+/**
+ * A fixed number of {@link SmtpConnection}s shared between the threads sending mails. A thread borrows a connection with
+ * {@link #take()}, and gives it back with {@link #give(SmtpConnection)} once its mail is sent.
+ */
+class SmtpConnectionPool {
+    private final List<SmtpConnection> mConnections = new ArrayList<SmtpConnection>();
+    private final BlockingQueue<SmtpConnection> mAvailableConnections;
+
+    /**
+     * @param mailSession the session used to create the connections.
+     * @param size the number of connections which may be open at the same time.
+     * @param maxMailsPerConnection see {@link SmtpConnection#SmtpConnection(Session, int, Metrics)}
+     * @param metrics updated by the connections.
+     */
+    SmtpConnectionPool(Session mailSession, int size, int maxMailsPerConnection, Metrics metrics) {
+        mAvailableConnections = new ArrayBlockingQueue<SmtpConnection>(size);
+        for (int i = 0; i < size; i++) {
+            SmtpConnection connection = new SmtpConnection(mailSession, maxMailsPerConnection, metrics);
+            mConnections.add(connection);
+            mAvailableConnections.add(connection);
+        }
+    }
+
+    /**
+     * @return a connection which is not being used by any other thread. Blocks until one is available.
+     */
+    SmtpConnection take() throws InterruptedException {
+        return mAvailableConnections.take();
+    }
+
+    /**
+     * Give back a connection obtained with {@link #take()}, so that another thread can use it.
+     */
+    void give(SmtpConnection connection) {
+        mAvailableConnections.add(connection);
+    }
+
+    /**
+     * Close all the connections. This must only be called when no thread is using a connection.
+     */
+    void closeAll() {
+        for (SmtpConnection connection : mConnections)
+            connection.close();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.IOException;
+
+import javax.mail.Address;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Why a mail could not be sent to a recipient: the SMTP reply code, if the server gave one, and whether the failure is transient, in
+ * which case sending the mail again later may work.<br/>
+ * 
+ * 4xx replies (greylisting, throttling, a full mailbox...) and lost connections are transient. 5xx replies, and failures without a
+ * reply code, are permanent.
+ */
+class SmtpFailure {
+    // The SMTP reply code, or 0 if the server didn't give one.
+    final int code;
+    final boolean isTransient;
+    final Exception exception;
+
+    private SmtpFailure(int code, boolean isTransient, Exception exception) {
+        this.code = code;
+        this.isTransient = isTransient;
+        this.exception = exception;
+    }
+
+    /**
+     * @param e the exception we got while creating or sending the mail.
+     * @param address the address of the recipient. If we sent the mail to several recipients, the exception may contain the reply of
+     *            the server for each of them.
+     */
+    static SmtpFailure get(Exception e, String address) {
+        String emailAddress = getEmailAddress(address);
+        // JavaMail chains the exceptions with getCause(), which returns MessagingException.getNextException().
+        // The reply to the RCPT TO: command for this recipient, if it was refused.
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SMTPAddressFailedException) {
+                SMTPAddressFailedException addressFailedException = (SMTPAddressFailedException) t;
+                if (emailAddress.equalsIgnoreCase(getEmailAddress(addressFailedException.getAddress())))
+                    return create(addressFailedException.getReturnCode(), addressFailedException);
+            }
+        }
+        // Otherwise, the reply to the MAIL FROM: or DATA commands, which concerns every recipient.
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SMTPSendFailedException) return create(((SMTPSendFailedException) t).getReturnCode(), e);
+            if (t instanceof SMTPSenderFailedException) return create(((SMTPSenderFailedException) t).getReturnCode(), e);
+        }
+        // No reply: we may have lost the connection.
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException || t instanceof IllegalStateException) return new SmtpFailure(0, true, e);
+        }
+        return new SmtpFailure(0, false, e);
+    }
+
+    private static SmtpFailure create(int code, Exception e) {
+        return new SmtpFailure(code, code / 100 == 4, e);
+    }
+
+    /**
+     * @return the e-mail address without the name: john@doe.com for "John Doe <john@doe.com>".
+     */
+    private static String getEmailAddress(String address) {
+        try {
+            return new InternetAddress(address).getAddress();
+        } catch (AddressException e) {
+            return address;
+        }
+    }
+
+    private static String getEmailAddress(Address address) {
+        return address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : String.valueOf(address);
+    }
+
+    /**
+     * @return the SMTP reply code, like "SMTP 550", or the type of the exception if the server didn't reply.
+     */
+    String getErrorClass() {
+        return code > 0 ? "SMTP " + code : exception.getClass().getSimpleName();
+    }
+
+    @Override
+    public String toString() {
+        String message = String.valueOf(exception.getMessage()).trim();
+        if (code > 0 && !message.startsWith(String.valueOf(code))) message = code + " " + message;
+        return message;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+import javax.net.SocketFactory;
+
+/**
+ * Creates the sockets to the SMTP server: they have TCP_NODELAY set, and they update the {@link Metrics} with the time spent connecting
+ * and the bytes sent.<br/>
+ * 
+ * Without TCP_NODELAY, the last small segment of each mail is held back until the server acknowledges the previous one, and servers may
+ * wait up to 40ms before acknowledging it: this limited each connection to about 25 mails per second.
+ */
+class SmtpSocketFactory extends SocketFactory {
+    private final Metrics mMetrics;
+
+    SmtpSocketFactory(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        Socket socket = new MeteredSocket();
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return connect(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return connect(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+    }
+
+    private Socket connect(SocketAddress address, SocketAddress localAddress) throws IOException {
+        Socket socket = createSocket();
+        if (localAddress != null) socket.bind(localAddress);
+        socket.connect(address);
+        return socket;
+    }
+
+    /**
+     * Times its connection and counts the bytes written to it.
+     */
+    private class MeteredSocket extends Socket {
+        private OutputStream mOutputStream;
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            long start = System.nanoTime();
+            super.connect(endpoint, timeout);
+            mMetrics.connect.record(start);
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mOutputStream == null) {
+                mOutputStream = new FilterOutputStream(super.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        mMetrics.bytesSent.add(1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        mMetrics.bytesSent.add(len);
+                    }
+                };
+            }
+            return mOutputStream;
+        }
+    }
+}
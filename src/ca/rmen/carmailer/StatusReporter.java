@@ -0,0 +1,303 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Sends the status mails, on its own thread and over its own SMTP connection, so that the mails to the recipients never wait for
+ * them.<br/>
+ * 
+ * Each status mail has the progress, the throughput since the previous status mail, the number of failures by error, and the failures
+ * since the previous status mail. If there are too many failures to list them in the mail, the list of all the failures is attached,
+ * gzipped.
+ */
+class StatusReporter {
+    private static final String TAG = StatusReporter.class.getSimpleName();
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    // List at most this many failures in the mail. If there are more, attach them.
+    private static final int MAX_LISTED_FAILURES = 100;
+    private static final Object STOP = new Object();
+
+    private final Session mMailSession;
+    private final Mail mMail;
+    private final String mTo;
+    private final Metrics mMetrics;
+    private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<Object>();
+    private final Thread mThread;
+
+    // The fields below are only used by the reporter thread.
+    // All the failures, one per line.
+    private final File mFailuresFile;
+    private final Writer mFailuresWriter;
+    private int mFailureCount;
+    private final Map<String, Integer> mFailureCounts = new TreeMap<String, Integer>();
+    // The first failures since the last status mail, and how many there are in total.
+    private final List<String> mNewFailures = new ArrayList<String>();
+    private int mNewFailureCount;
+    private Progress mLastProgress;
+
+    /**
+     * A snapshot of the progress, at the end of a batch.
+     */
+    static class Progress {
+        // The number of recipients we're done with: sent, failed, or skipped.
+        final int mailsProcessed;
+        final int duplicateCount;
+        final int invalidCount;
+        final int suppressedCount;
+        // The number of recipients waiting for a retry, by error.
+        final Map<String, Integer> pendingRetryCounts;
+        final long time = System.currentTimeMillis();
+
+        Progress(int mailsProcessed, int duplicateCount, int invalidCount, int suppressedCount, Map<String, Integer> pendingRetryCounts) {
+            this.mailsProcessed = mailsProcessed;
+            this.duplicateCount = duplicateCount;
+            this.invalidCount = invalidCount;
+            this.suppressedCount = suppressedCount;
+            this.pendingRetryCounts = pendingRetryCounts;
+        }
+    }
+
+    private static class Failure {
+        final Recipient recipient;
+        final SmtpFailure failure;
+
+        Failure(Recipient recipient, SmtpFailure failure) {
+            this.recipient = recipient;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * @param mail the mail we're sending. The status mails have the same sender.
+     * @param to the address to send the status mails to.
+     */
+    StatusReporter(Session mailSession, Mail mail, String to, Metrics metrics) throws IOException {
+        mMailSession = mailSession;
+        mMail = mail;
+        mTo = to;
+        mMetrics = metrics;
+        mFailuresFile = File.createTempFile("carmailer-failures", ".txt");
+        mFailuresFile.deleteOnExit();
+        mFailuresWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFailuresFile), CHARSET));
+        mLastProgress = new Progress(0, 0, 0, 0, null);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StatusReporter.this.run();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Add a recipient to the failures of the next status mail. This never blocks.
+     */
+    void onFailure(Recipient recipient, SmtpFailure failure) {
+        mEvents.add(new Failure(recipient, failure));
+    }
+
+    /**
+     * Send a status mail with the given progress, and the failures added so far. This never blocks: the mail is sent later.
+     */
+    void report(Progress progress) {
+        mEvents.add(progress);
+    }
+
+    /**
+     * Send the status mails which are waiting, and stop.
+     */
+    void close() throws InterruptedException {
+        mEvents.add(STOP);
+        mThread.join();
+    }
+
+    private void run() {
+        try {
+            for (Object event = mEvents.take(); event != STOP; event = mEvents.take()) {
+                if (event instanceof Failure) addFailure((Failure) event);
+                else send((Progress) event);
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted");
+        }
+        try {
+            mFailuresWriter.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not close " + mFailuresFile + ": " + e.getMessage());
+        }
+        mFailuresFile.delete();
+    }
+
+    private void addFailure(Failure failure) {
+        String line = failure.recipient.address + ": " + failure.failure;
+        try {
+            mFailuresWriter.write(line);
+            mFailuresWriter.write('\n');
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write to " + mFailuresFile + ": " + e.getMessage(), e);
+        }
+        mFailureCount++;
+        increment(mFailureCounts, failure.failure.getErrorClass());
+        if (mNewFailures.size() < MAX_LISTED_FAILURES) mNewFailures.add(line);
+        mNewFailureCount++;
+    }
+
+    private void send(Progress progress) {
+        int mailsDone = progress.mailsProcessed + progress.duplicateCount + progress.invalidCount;
+        Log.i(TAG, "sending status e-mail from " + mMail.headers.from + " to " + mTo + ", " + mailsDone + " messages sent");
+        File attachment = null;
+        SmtpConnection connection = new SmtpConnection(mMailSession, 0, mMetrics);
+        try {
+            if (mFailureCount > MAX_LISTED_FAILURES) attachment = gzipFailures();
+            connection.send(createMessage(progress, mailsDone, attachment));
+        } catch (Exception e) {
+            Log.e(TAG, "Could not send status mail to " + mTo + ": " + e.getMessage(), e);
+        } finally {
+            connection.close();
+            if (attachment != null) attachment.delete();
+        }
+        mNewFailures.clear();
+        mNewFailureCount = 0;
+        mLastProgress = progress;
+    }
+
+    private Message createMessage(Progress progress, int mailsDone, File attachment) throws MessagingException, IOException {
+        int totalRecipientCount = mMail.recipientCount;
+        String subject = mailsDone + " of " + totalRecipientCount + " sent: \"" + mMail.headers.subject + "\"";
+        StringBuilder body = new StringBuilder();
+        body.append("Sent " + mailsDone + " messages out of " + totalRecipientCount + ".\n");
+        double seconds = (progress.time - mLastProgress.time) / 1000.0;
+        int mailsSinceLastReport = progress.mailsProcessed - mLastProgress.mailsProcessed;
+        if (seconds > 0) body.append(String.format(Locale.US, "Since the last status: %d messages in %.0f seconds (%.1f messages per second).\n",
+                mailsSinceLastReport, seconds, mailsSinceLastReport / seconds));
+        body.append("\n");
+
+        if (mFailureCount == 0) {
+            body.append("No critical failures.\n");
+        } else {
+            body.append(mFailureCount + " failures, " + mNewFailureCount + " since the last status:\n");
+            appendCounts(body, mFailureCounts);
+            if (mNewFailureCount > 0) {
+                body.append("\nNew failures:\n\n");
+                for (String failure : mNewFailures)
+                    body.append(failure).append('\n');
+                if (mNewFailureCount > mNewFailures.size()) body.append("... and " + (mNewFailureCount - mNewFailures.size()) + " more.\n");
+            }
+            if (attachment != null) body.append("\nThe list of all the failures is attached.\n");
+        }
+        if (progress.pendingRetryCounts != null && !progress.pendingRetryCounts.isEmpty()) {
+            int pendingRetryCount = 0;
+            for (int count : progress.pendingRetryCounts.values())
+                pendingRetryCount += count;
+            body.append("\n" + pendingRetryCount + " temporary failures, which will be retried:\n");
+            appendCounts(body, progress.pendingRetryCounts);
+        }
+        if (progress.duplicateCount + progress.invalidCount + progress.suppressedCount > 0)
+            body.append("\nSkipped " + progress.duplicateCount + " duplicate recipients, " + progress.invalidCount + " invalid addresses and "
+                    + progress.suppressedCount + " suppressed addresses.\n");
+
+        MimeMessage message = new CarMimeMessage(mMailSession, mMail.headers.messageIdDomain);
+        message.setSubject(MimeUtility.encodeText(subject, CHARSET.name(), "Q"));
+        message.setFrom(new InternetAddress(mMail.headers.from));
+        message.setHeader("User-Agent", mMail.headers.userAgent);
+        message.addRecipients(Message.RecipientType.TO, InternetAddress.parse(mTo));
+        message.setSentDate(new Date());
+        if (attachment == null) {
+            message.setText(body.toString(), CHARSET.name());
+        } else {
+            MimeMultipart multipart = new MimeMultipart();
+            MimeBodyPart text = new MimeBodyPart();
+            text.setText(body.toString(), CHARSET.name());
+            multipart.addBodyPart(text);
+            MimeBodyPart failures = new MimeBodyPart();
+            failures.setDataHandler(new DataHandler(new FileDataSource(attachment) {
+                @Override
+                public String getContentType() {
+                    return "application/gzip";
+                }
+            }));
+            failures.setFileName("failures.txt.gz");
+            multipart.addBodyPart(failures);
+            message.setContent(multipart);
+        }
+        return message;
+    }
+
+    /**
+     * @return a temporary file with all the failures so far, gzipped.
+     */
+    private File gzipFailures() throws IOException {
+        mFailuresWriter.flush();
+        File file = File.createTempFile("carmailer-failures", ".txt.gz");
+        file.deleteOnExit();
+        InputStream is = new FileInputStream(mFailuresFile);
+        try {
+            OutputStream os = new GZIPOutputStream(new FileOutputStream(file), 64 * 1024);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                for (int read = is.read(buffer); read > 0; read = is.read(buffer))
+                    os.write(buffer, 0, read);
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+        return file;
+    }
+
+    private static void appendCounts(StringBuilder body, Map<String, Integer> counts) {
+        for (Map.Entry<String, Integer> count : counts.entrySet())
+            body.append("  " + count.getKey() + ": " + count.getValue() + "\n");
+    }
+
+    /**
+     * Add one to the count of the given key.
+     */
+    static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The addresses we must never send a mail to, like the ones which unsubscribed or bounced.<br/>
+ * 
+ * The addresses are read from a text file with the same format as the recipients file. The first time, we build an index next to it,
+ * in a file with the .idx extension, which is rebuilt only when the text file changes. The index contains:
+ * <ul>
+ * <li>A Bloom filter, which we load in memory: it tells us right away that most addresses aren't in the list.</li>
+ * <li>The 64-bit hashes of the addresses, sorted, and split in buckets by their first bits: the few hashes of the bucket of an
+ * address are all we need to read to know if the address is in the list. This part is memory-mapped, and only read if the Bloom
+ * filter says the address may be in the list.</li>
+ * </ul>
+ * The addresses are compared without their display name, and ignoring case.
+ */
+class SuppressionList {
+    private static final String TAG = SuppressionList.class.getSimpleName();
+    private static final long MAGIC = 0x434d535550503031L; // CMSUPP01
+    private static final int HEADER_SIZE = 8 + 8 + 8 + 4 + 4 + 4;
+    // The index has about this many hashes per bucket.
+    private static final int HASHES_PER_BUCKET = 8;
+    // The Bloom filter uses this many bits per address, in blocks of 512 bits (one cache line), setting BLOOM_HASHES bits per address.
+    private static final int BLOOM_BITS_PER_ADDRESS = 10;
+    private static final int BLOOM_BLOCK_LONGS = 8;
+    private static final int BLOOM_HASHES = 6;
+
+    private final int mSize;
+    private final int mBucketBits;
+    private final long[] mBloomFilter;
+    // The start of each bucket in mHashes, and the end of the last bucket.
+    private final IntBuffer mBuckets;
+    private final LongBuffer mHashes;
+    private int mSuppressedCount;
+
+    private SuppressionList(int size, int bucketBits, long[] bloomFilter, IntBuffer buckets, LongBuffer hashes) {
+        mSize = size;
+        mBucketBits = bucketBits;
+        mBloomFilter = bloomFilter;
+        mBuckets = buckets;
+        mHashes = hashes;
+    }
+
+    /**
+     * Open the suppression list in the given file, building its index first if needed.
+     * 
+     * @param charset the charset of the file.
+     */
+    static SuppressionList open(File file, Charset charset) throws IOException {
+        File indexFile = new File(file.getPath() + ".idx");
+        SuppressionList result = load(file, indexFile);
+        if (result == null) {
+            Log.i(TAG, "Building the index " + indexFile + " of the suppression list " + file);
+            build(file, charset, indexFile);
+            result = load(file, indexFile);
+            if (result == null) throw new IOException("Could not read the index " + indexFile + " we just built");
+        }
+        Log.i(TAG, "Loaded " + result.mSize + " suppressed addresses from " + indexFile);
+        return result;
+    }
+
+    /**
+     * @param recipient a recipient whose address was normalized by the {@link RecipientFilter}.
+     * @return true if we must not send a mail to the given recipient.
+     */
+    boolean contains(Recipient recipient) {
+        long hash = hash(RecipientFilter.getEmailAddress(recipient.address));
+        if (!mightContain(mBloomFilter, hash)) return false;
+        int bucket = (int) (hash >>> (64 - mBucketBits));
+        for (int i = mBuckets.get(bucket); i < mBuckets.get(bucket + 1); i++) {
+            if (mHashes.get(i) == hash) {
+                mSuppressedCount++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of times {@link #contains(Recipient)} returned true.
+     */
+    int getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    /**
+     * @return the hash of the given e-mail address, in lower case.
+     */
+    private static long hash(String emailAddress) {
+        return RecipientFilter.fingerprint(emailAddress.toLowerCase(Locale.US));
+    }
+
+    /**
+     * @return the suppression list in the given index, or null if the index doesn't exist or isn't up to date.
+     */
+    private static SuppressionList load(File file, File indexFile) throws IOException {
+        if (!indexFile.exists()) return null;
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readLong() != MAGIC || raf.readLong() != file.length()
+                    || raf.readLong() != file.lastModified()) return null;
+            int size = raf.readInt();
+            int bucketBits = raf.readInt();
+            int bloomLongs = raf.readInt();
+            long[] bloomFilter = new long[bloomLongs];
+            raf.getChannel().map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, bloomLongs * 8L).asLongBuffer().get(bloomFilter);
+            long bucketsPosition = HEADER_SIZE + bloomLongs * 8L;
+            long hashesPosition = bucketsPosition + ((1L << bucketBits) + 1) * 4;
+            if (raf.length() != hashesPosition + size * 8L) return null;
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, bucketsPosition, raf.length() - bucketsPosition);
+            buffer.limit((int) (hashesPosition - bucketsPosition));
+            IntBuffer buckets = buffer.slice().asIntBuffer();
+            buffer.limit(buffer.capacity()).position((int) (hashesPosition - bucketsPosition));
+            LongBuffer hashes = buffer.slice().asLongBuffer();
+            return new SuppressionList(size, bucketBits, bloomFilter, buckets, hashes);
+        } finally {
+            // The mappings stay valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * Read the addresses of the given file, and write their index.
+     */
+    private static void build(File file, Charset charset, File indexFile) throws IOException {
+        // Hash the addresses.
+        long fileLength = file.length();
+        long lastModified = file.lastModified();
+        RecipientFile recipients = new RecipientFile(file.getPath(), charset);
+        long[] hashes = new long[recipients.size()];
+        int size = 0;
+        for (Recipient recipient : recipients) {
+            if (size == hashes.length) hashes = Arrays.copyOf(hashes, size * 2 + 1);
+            String address = RecipientFilter.normalize(recipient.address);
+            hashes[size++] = hash(RecipientFilter.getEmailAddress(address == null ? recipient.address : address));
+        }
+
+        // Sort them as unsigned numbers, so that the buckets, which are given by the first bits, are in order. Remove the duplicates.
+        for (int i = 0; i < size; i++)
+            hashes[i] ^= Long.MIN_VALUE;
+        Arrays.sort(hashes, 0, size);
+        int uniqueSize = 0;
+        for (int i = 0; i < size; i++) {
+            hashes[i] ^= Long.MIN_VALUE;
+            if (uniqueSize == 0 || hashes[i] != hashes[uniqueSize - 1]) hashes[uniqueSize++] = hashes[i];
+        }
+        size = uniqueSize;
+        if (size > (Integer.MAX_VALUE - HEADER_SIZE) / 8) throw new IOException("Too many addresses in " + file + ": " + size);
+
+        int bucketBits = 1;
+        while ((1L << bucketBits) * HASHES_PER_BUCKET < size)
+            bucketBits++;
+        int[] buckets = new int[(1 << bucketBits) + 1];
+        for (int i = 0, bucket = 0; bucket < buckets.length; bucket++) {
+            while (i < size && (hashes[i] >>> (64 - bucketBits)) < bucket)
+                i++;
+            buckets[bucket] = i;
+        }
+        buckets[buckets.length - 1] = size;
+
+        int blocks = Math.max(1, (int) (((long) size * BLOOM_BITS_PER_ADDRESS + 511) / 512));
+        long[] bloomFilter = new long[blocks * BLOOM_BLOCK_LONGS];
+        for (int i = 0; i < size; i++)
+            add(bloomFilter, hashes[i]);
+
+        // Write the index in a temporary file, and rename it once it's complete.
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 256 * 1024));
+        try {
+            os.writeLong(MAGIC);
+            os.writeLong(fileLength);
+            os.writeLong(lastModified);
+            os.writeInt(size);
+            os.writeInt(bucketBits);
+            os.writeInt(bloomFilter.length);
+            for (long bits : bloomFilter)
+                os.writeLong(bits);
+            for (int bucket : buckets)
+                os.writeInt(bucket);
+            for (int i = 0; i < size; i++)
+                os.writeLong(hashes[i]);
+        } finally {
+            os.close();
+        }
+        // On Windows, renameTo doesn't replace an existing file.
+        if (!tmpFile.renameTo(indexFile) && !(indexFile.delete() && tmpFile.renameTo(indexFile)))
+            throw new IOException("Could not rename " + tmpFile + " to " + indexFile);
+    }
+
+    private static void add(long[] bloomFilter, long hash) {
+        int block = getBloomBlock(bloomFilter, hash);
+        long bits = getBloomBits(hash);
+        for (int i = 0; i < BLOOM_HASHES; i++, bits >>>= 9) {
+            int bit = (int) (bits & 511);
+            bloomFilter[block + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(long[] bloomFilter, long hash) {
+        int block = getBloomBlock(bloomFilter, hash);
+        long bits = getBloomBits(hash);
+        for (int i = 0; i < BLOOM_HASHES; i++, bits >>>= 9) {
+            int bit = (int) (bits & 511);
+            if ((bloomFilter[block + (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return bits to choose the bits to set in the block, which don't depend on the bits which chose the block.
+     */
+    private static long getBloomBits(long hash) {
+        long bits = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        return bits ^ (bits >>> 33);
+    }
+
+    /**
+     * @return the index in the Bloom filter of the first long of the block for the given hash.
+     */
+    private static int getBloomBlock(long[] bloomFilter, long hash) {
+        // The low bits of the hash: the high bits give the bucket of the index.
+        long blocks = bloomFilter.length / BLOOM_BLOCK_LONGS;
+        return (int) (((hash & 0xffffffffL) * blocks) >>> 32) * BLOOM_BLOCK_LONGS;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A mail body split once into literal text and tag placeholders (%1, %2, %3, etc), so that the body for each recipient can be built
+ * in a single pass, without scanning the whole body again for each tag.<br/>
+ * 
+ * A placeholder is a % followed by all the digits after it: %10 is the tenth tag, not the first tag followed by a 0. Placeholders for
+ * which the recipient has no tag are kept as is, and tag values are inserted literally. So text like %20 in a link is only a placeholder
+ * for recipients with at least 20 tags.
+ */
+class Template {
+    private static final char TAG_PREFIX = '%';
+
+    private final String mText;
+    // The body is: literal 0, placeholder 0, literal 1, placeholder 1, ..., literal n.
+    // mLiteralStarts[i] and mLiteralEnds[i] are the bounds of literal i in mText.
+    private final int[] mLiteralStarts;
+    private final int[] mLiteralEnds;
+    // The 0-based index of the tag for each placeholder.
+    private final int[] mTagIndexes;
+    // The smallest tag index of all the placeholders, or Integer.MAX_VALUE if there are none.
+    private final int mMinTagIndex;
+    private final int mLiteralLength;
+
+    private Template(String text, int[] literalStarts, int[] literalEnds, int[] tagIndexes) {
+        mText = text;
+        mLiteralStarts = literalStarts;
+        mLiteralEnds = literalEnds;
+        mTagIndexes = tagIndexes;
+        int literalLength = 0;
+        for (int i = 0; i < literalStarts.length; i++)
+            literalLength += literalEnds[i] - literalStarts[i];
+        mLiteralLength = literalLength;
+        int minTagIndex = Integer.MAX_VALUE;
+        for (int tagIndex : tagIndexes)
+            minTagIndex = Math.min(minTagIndex, tagIndex);
+        mMinTagIndex = minTagIndex;
+    }
+
+    /**
+     * Split the given text into literal text and placeholders.
+     */
+    static Template compile(String text) {
+        List<int[]> placeholders = new ArrayList<int[]>();
+        int length = text.length();
+        for (int i = text.indexOf(TAG_PREFIX); i >= 0 && i < length; i = text.indexOf(TAG_PREFIX, i + 1)) {
+            int end = i + 1;
+            int tagNumber = 0;
+            while (end < length && isDigit(text.charAt(end)) && tagNumber < Integer.MAX_VALUE / 10) {
+                tagNumber = tagNumber * 10 + text.charAt(end) - '0';
+                end++;
+            }
+            // Tags are numbered from 1.
+            if (tagNumber > 0) {
+                placeholders.add(new int[] { i, end, tagNumber - 1 });
+                i = end - 1;
+            }
+        }
+
+        int placeholderCount = placeholders.size();
+        int[] literalStarts = new int[placeholderCount + 1];
+        int[] literalEnds = new int[placeholderCount + 1];
+        int[] tagIndexes = new int[placeholderCount];
+        int literalStart = 0;
+        for (int i = 0; i < placeholderCount; i++) {
+            int[] placeholder = placeholders.get(i);
+            literalStarts[i] = literalStart;
+            literalEnds[i] = placeholder[0];
+            tagIndexes[i] = placeholder[2];
+            literalStart = placeholder[1];
+        }
+        literalStarts[placeholderCount] = literalStart;
+        literalEnds[placeholderCount] = length;
+        return new Template(text, literalStarts, literalEnds, tagIndexes);
+    }
+
+    /**
+     * @return true if the text contains at least one placeholder.
+     */
+    boolean hasTags() {
+        return mTagIndexes.length > 0;
+    }
+
+    /**
+     * @return true if at least one placeholder will be replaced by one of the given tags. If not, {@link #apply(String[])} returns the
+     *         text as is.
+     */
+    boolean usesTags(String[] tags) {
+        return mMinTagIndex < tags.length;
+    }
+
+    /**
+     * @return the text with each placeholder replaced by the value of its tag.
+     */
+    String apply(String[] tags) {
+        if (mTagIndexes.length == 0) return mText;
+        int length = mLiteralLength;
+        for (int i = 0; i < mTagIndexes.length; i++)
+            length += getPlaceholderValueLength(i, tags);
+
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < mTagIndexes.length; i++) {
+            result.append(mText, mLiteralStarts[i], mLiteralEnds[i]);
+            int tagIndex = mTagIndexes[i];
+            if (tagIndex < tags.length) result.append(tags[tagIndex]);
+            else result.append(mText, mLiteralEnds[i], mLiteralStarts[i + 1]);
+        }
+        result.append(mText, mLiteralStarts[mTagIndexes.length], mLiteralEnds[mTagIndexes.length]);
+        return result.toString();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private int getPlaceholderValueLength(int placeholder, String[] tags) {
+        int tagIndex = mTagIndexes[placeholder];
+        if (tagIndex < tags.length) return tags[tagIndex].length();
+        return mLiteralStarts[placeholder + 1] - mLiteralEnds[placeholder];
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * ----------------------------------------------------------------------------
+ * "THE WINE-WARE LICENSE" Version 1.0:
+ * Authors: Carmen Alvarez. 
+ * As long as you retain this notice you can do whatever you want with this stuff. 
+ * If we meet some day, and you think this stuff is worth it, you can buy me a 
+ * glass of wine in return. 
+ * 
+ * THE AUTHORS OF THIS FILE ARE NOT RESPONSIBLE FOR LOSS OF LIFE, LIMBS, SELF-ESTEEM,
+ * MONEY, RELATIONSHIPS, OR GENERAL MENTAL OR PHYSICAL HEALTH CAUSED BY THE
+ * CONTENTS OF THIS FILE OR ANYTHING ELSE.
+ * ----------------------------------------------------------------------------
+ */
+package ca.rmen.carmailer.main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ca.rmen.carmailer.ArchiveReader;
+
+/**
+ * Command-line utility to read back the mail sent to one recipient, from the output folder of CarMailer.
+ */
+public class ExtractMail {
+
+    /**
+     * Writes the mail sent to the given address to the given eml file, or to the standard output.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) usage();
+        File folder = new File(args[0]);
+        String address = args[1];
+        OutputStream os = args.length == 3 ? new FileOutputStream(args[2]) : System.out;
+        boolean found;
+        try {
+            found = new ArchiveReader(folder).extract(address, os);
+        } finally {
+            os.close();
+        }
+        if (!found) {
+            System.err.println("No mail for " + address + " in " + folder);
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Write the mail sent to one recipient, as saved with --output-folder, to an eml file or to the standard output.");
+        System.err.println();
+        System.err.println("Usage: java -cp carmailer.jar " + ExtractMail.class.getName() + " <output folder> <address> [eml file]");
+        System.exit(1);
+    }
+}
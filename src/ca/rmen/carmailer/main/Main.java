@@ -20,7 +20,7 @@ import java.net.URL;
 import java.nio.charset.Charset;
 import java.security.CodeSource;
 import java.security.ProtectionDomain;
-import java.util.List;
+import java.util.Locale;
 
 import ca.rmen.carmailer.CarMailer;
 import ca.rmen.carmailer.Mail;
@@ -28,8 +28,9 @@ import ca.rmen.carmailer.Mail.Body;
 import ca.rmen.carmailer.MailHeaders;
 import ca.rmen.carmailer.Parser;
 import ca.rmen.carmailer.Parser.BodyType;
-import ca.rmen.carmailer.Recipient;
+import ca.rmen.carmailer.RecipientFile;
 import ca.rmen.carmailer.SendOptions;
+import ca.rmen.carmailer.SendOptions.OutputFormat;
 import ca.rmen.carmailer.SmtpCredentials;
 
 /**
@@ -49,14 +50,11 @@ public class Main {
 
         BodyType bodyType = BodyType.AUTO;
         Charset charset = null;
+        File bodyCacheFolder = null;
         String from = null;
-        File outputFolder = null;
-        int maxMailsPerBatch = 100;
-        int delayBetweenBatchesS = 60 * 60; // 1 hour
-        String statusEmailAddress = null;
+        SendOptions.Builder sendOptions = new SendOptions.Builder();
         String messageIdDomain = InetAddress.getLocalHost().getHostName();
         String userAgent = "CarMailer";
-        boolean dryRun = false;
         String password = null;
         for (i = 0; i < args.length - required_arguments_length; i++) {
             if (args[i].equals("--password")) {
@@ -75,23 +73,82 @@ public class Main {
                     System.err.println("Invalid charset " + charset);
                     System.exit(1);
                 }
+            } else if (args[i].equals("--body-cache")) {
+                bodyCacheFolder = new File(args[++i]);
             } else if (args[i].equals("--from")) {
                 from = args[++i];
             } else if (args[i].equals("--output-folder")) {
                 String outputFolderName = args[++i];
-                outputFolder = new File(outputFolderName);
+                File outputFolder = new File(outputFolderName);
                 if (!outputFolder.isDirectory() && !outputFolder.mkdir()) {
                     System.err.println(outputFolderName + " does not exist and cannot be created");
                     System.exit(1);
                 }
+                sendOptions.outputFolder(outputFolder);
+            } else if (args[i].equals("--output-format")) {
+                try {
+                    sendOptions.outputFormat(OutputFormat.valueOf(args[++i].toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    usage();
+                }
             } else if (args[i].equals("--dry-run")) {
-                dryRun = true;
+                sendOptions.dryRun(true);
             } else if (args[i].equals("--batch-size")) {
-                maxMailsPerBatch = Integer.valueOf(args[++i]);
+                sendOptions.maxMailsPerBatch(Integer.valueOf(args[++i]));
             } else if (args[i].equals("--batch-delay")) {
-                delayBetweenBatchesS = Integer.valueOf(args[++i]);
+                sendOptions.delayBetweenBatches(Integer.valueOf(args[++i]));
+            } else if (args[i].equals("--rate")) {
+                sendOptions.maxMailsPerSecond(parseRate(args[++i]));
+            } else if (args[i].equals("--burst")) {
+                sendOptions.burstSize(Integer.valueOf(args[++i]));
+            } else if (args[i].equals("--domain-rate")) {
+                String[] domainRate = parseDomainLimit(args[++i]);
+                sendOptions.domainMailsPerSecond(domainRate[0], parseRate(domainRate[1]));
+            } else if (args[i].equals("--domain-connections")) {
+                String[] domainConnectionCount = parseDomainLimit(args[++i]);
+                sendOptions.domainConnections(domainConnectionCount[0], Integer.valueOf(domainConnectionCount[1]));
+            } else if (args[i].equals("--mails-per-connection")) {
+                sendOptions.maxMailsPerConnection(Integer.valueOf(args[++i]));
+            } else if (args[i].equals("--recipients-per-mail")) {
+                int maxRecipientsPerMail = Integer.valueOf(args[++i]);
+                if (maxRecipientsPerMail < 1) usage();
+                sendOptions.maxRecipientsPerMail(maxRecipientsPerMail);
+            } else if (args[i].equals("--connections")) {
+                int connections = Integer.valueOf(args[++i]);
+                if (connections < 1) usage();
+                sendOptions.connections(connections);
+            } else if (args[i].equals("--virtual-threads")) {
+                sendOptions.virtualThreads(true);
+            } else if (args[i].equals("--builder-threads")) {
+                int builderThreads = Integer.valueOf(args[++i]);
+                if (builderThreads < 1) usage();
+                sendOptions.builderThreads(builderThreads);
+            } else if (args[i].equals("--journal")) {
+                sendOptions.journalFile(new File(args[++i]));
+            } else if (args[i].equals("--resume")) {
+                sendOptions.journalFile(new File(args[++i])).resume(true);
+            } else if (args[i].equals("--metrics-file")) {
+                sendOptions.metricsFile(new File(args[++i]));
+            } else if (args[i].equals("--metrics-interval")) {
+                int metricsInterval = Integer.valueOf(args[++i]);
+                if (metricsInterval < 1) usage();
+                sendOptions.metricsInterval(metricsInterval);
+            } else if (args[i].equals("--max-retries")) {
+                int maxRetries = Integer.valueOf(args[++i]);
+                if (maxRetries < 0) usage();
+                sendOptions.maxRetries(maxRetries);
+            } else if (args[i].equals("--retry-delay")) {
+                int retryDelayS = Integer.valueOf(args[++i]);
+                if (retryDelayS < 0) usage();
+                sendOptions.retryDelay(retryDelayS);
+            } else if (args[i].equals("--suppress")) {
+                sendOptions.suppressionFile(new File(args[++i]));
+            } else if (args[i].equals("--http-port")) {
+                int httpPort = Integer.valueOf(args[++i]);
+                if (httpPort < 1 || httpPort > 65535) usage();
+                sendOptions.httpPort(httpPort);
             } else if (args[i].equals("--send-progress")) {
-                statusEmailAddress = args[++i];
+                sendOptions.statusEmailAddress(args[++i]);
             } else if (args[i].equals("--domain")) {
                 messageIdDomain = args[++i];
             } else if (args[i].equals("--user-agent")) {
@@ -118,14 +175,41 @@ public class Main {
         if (from == null) from = userName;
 
         // Parse the mail body.
-        Body body = Parser.parse(bodyFilePath, bodyType, charset);
+        Body body = Parser.parse(bodyFilePath, bodyType, charset, bodyCacheFolder);
 
         // Read the file with the list of e-mail addresses
-        List<Recipient> recipients = Parser.parseRecipients(recipientsFilePath, body.charset);
+        RecipientFile recipients = new RecipientFile(recipientsFilePath, body.charset);
         MailHeaders headers = new MailHeaders(messageIdDomain, userAgent, from, subject);
         Mail mail = new Mail(headers, recipients, body);
-        SendOptions sendOptions = new SendOptions(dryRun, outputFolder, statusEmailAddress, maxMailsPerBatch, delayBetweenBatchesS);
-        CarMailer.sendEmail(credentials, mail, sendOptions);
+        CarMailer.sendEmail(credentials, mail, sendOptions.build());
+    }
+
+    /**
+     * @param rate a rate like 10/s, 100/m or 1000/h.
+     * @return the rate in mails per second.
+     */
+    private static double parseRate(String rate) {
+        String[] split = rate.split("/");
+        if (split.length != 2) usage();
+        double mails = Double.valueOf(split[0]);
+        // A rate limiter with no mails per second would never let any mail through.
+        if (!(mails > 0) || Double.isInfinite(mails)) usage();
+        if (split[1].equals("s")) return mails;
+        if (split[1].equals("m")) return mails / 60;
+        if (split[1].equals("h")) return mails / 3600;
+        usage();
+        return 0;
+    }
+
+    /**
+     * @param domainLimit a domain limit like gmail.com=10/m
+     * @return the domain and the limit, like {"gmail.com", "10/m"}
+     */
+    private static String[] parseDomainLimit(String domainLimit) {
+        String[] split = domainLimit.split("=");
+        if (split.length != 2) usage();
+        split[0] = split[0].toLowerCase(Locale.US);
+        return split;
     }
 
     /**
@@ -140,10 +224,29 @@ public class Main {
         System.err.println("--from <from>: the value of the From: field.  By default, the username is used.");
         System.err.println("--dry-run: if true, no mail will actually be sent.");
         System.err.println("--body-type <html|text|auto>: Default is auto.");
+        System.err.println("--body-cache <path>: save the parsed body in this folder, and reuse it in the next runs if the body file didn't change.");
         System.err.println("--batch-size <n>: send at most n mails in a batch. Default: 100 mails");
         System.err.println("--batch-delay <s>: wait s seconds between sending batches. Default: 3600s (1 hour)");
+        System.err.println("--rate <n>/<s|m|h>: within a batch, send at most n mails per second, minute or hour, evenly spaced. Default: no limit");
+        System.err.println("--burst <n>: with --rate, allow sending up to n mails at once after a pause. Default: 1");
+        System.err.println("--domain-rate <domain>=<n>/<s|m|h>: send at most n mails per second, minute or hour to the recipients of this domain. Use * for each domain without its own limit. May be repeated.");
+        System.err.println("--domain-connections <domain>=<n>: send at most n mails at the same time to the recipients of this domain. Use * for each domain without its own limit. May be repeated.");
+        System.err.println("--mails-per-connection <n>: send at most n mails over one SMTP connection. Default: 0 (one connection per batch)");
+        System.err.println("--recipients-per-mail <n>: send one mail to up to n recipients of the same domain at once, if none of their tags appear in the mail, with an \"undisclosed-recipients\" To: header. Default: 1");
+        System.err.println("--connections <n>: send n mails at the same time, over n SMTP connections. Default: 1");
+        System.err.println("--virtual-threads: send each mail on its own virtual thread (Java 21 and later). Use with a high --connections value.");
+        System.err.println("--builder-threads <n>: build the mails on n threads, while other threads send them. Default: the number of processors");
+        System.err.println("--journal <file>: append the outcome of each mail to this file");
+        System.err.println("--resume <file>: skip the recipients who already received the mail according to this journal file, and continue the journal");
+        System.err.println("--metrics-file <file>: write the metrics to this file, in the Prometheus text format. The metrics are also available over JMX.");
+        System.err.println("--metrics-interval <s>: with --metrics-file, write the file every s seconds. Default: 10s");
+        System.err.println("--max-retries <n>: after a transient failure (4xx reply or lost connection), send the mail again up to n times. Default: 5");
+        System.err.println("--retry-delay <s>: wait about s seconds before the first retry, twice as long before the second one, and so on. Default: 60s");
+        System.err.println("--suppress <file>: never send the mail to the addresses in this file, like the ones which unsubscribed or bounced. The file is indexed in <file>.idx the first time.");
+        System.err.println("--http-port <port>: show the progress as JSON at http://127.0.0.1:<port>/ : the mails sent, failed and remaining, the rate, the estimated end, and the recent failures.");
         System.err.println("--send-progress <email address>: Send the progress at the end of each batch, and end status to this e-mail address");
         System.err.println("--output-folder <path>: if specified, each mail will be written to a file in this folder");
+        System.err.println("--output-format <eml|mbox|deflate>: eml: one file per mail, in hashed subfolders. mbox: all the mails in mails.mbox, indexed in mails.idx. deflate: like mbox, but each mail is compressed, in mails.deflate. Default: eml");
         System.err
                 .println("--charset <charset>: specify the charset for reading and writing. By default the charset is guessed from the content of the file or the http-equiv meta tag in the html file.");
         System.err.println("--domain <domain>: The last part of the Message-ID header.  By default, the name of the machine is used");